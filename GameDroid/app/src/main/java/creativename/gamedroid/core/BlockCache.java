@@ -0,0 +1,171 @@
+package creativename.gamedroid.core;
+
+import java.util.Arrays;
+
+/* Decoded basic blocks for the block-cache interpreter core.
+
+   A block is a run of straight-line instructions, ending after the first one which can change
+   control flow (jumps, calls, returns, RST, HALT, STOP). Each instruction is packed into an int
+   with its opcode ($CB-prefixed opcodes as $100 + the second byte), length and immediate operand
+   already read, so executing it needs no memory reads for decoding.
+
+   ROM blocks are keyed by their address in the ROM image (i.e., by bank and PC), and never
+   change. Work RAM blocks are dropped whenever the MMU reports a write to decoded code in their
+   page, or in the page after it (which a block may run on into). Code anywhere else (HRAM, VRAM,
+   cartridge RAM, echo RAM) isn't cached */
+public class BlockCache {
+    private static final int MAX_BLOCK_INSTRUCTIONS = 32;
+    private static final int MAX_ROM_SIZE = 0x800000;
+
+    // Instruction lengths, indexed by opcode (0 for undefined opcodes, which end a block)
+    private static final int[] INSTRUCTION_LENGTHS = new int[256];
+
+    static {
+        for (int op = 0; op < 256; ++op)
+            INSTRUCTION_LENGTHS[op] = 1;
+        for (int op : new int[]{0x06, 0x0E, 0x16, 0x1E, 0x26, 0x2E, 0x36, 0x3E,
+                                0xC6, 0xCE, 0xD6, 0xDE, 0xE6, 0xEE, 0xF6, 0xFE,
+                                0x18, 0x20, 0x28, 0x30, 0x38, 0x10, 0xE0, 0xF0, 0xE8, 0xF8, 0xCB})
+            INSTRUCTION_LENGTHS[op] = 2;
+        for (int op : new int[]{0x01, 0x11, 0x21, 0x31, 0x08, 0xEA, 0xFA,
+                                0xC2, 0xC3, 0xCA, 0xD2, 0xDA, 0xC4, 0xCC, 0xCD, 0xD4, 0xDC})
+            INSTRUCTION_LENGTHS[op] = 3;
+        for (int op : new int[]{0xD3, 0xDB, 0xDD, 0xE3, 0xE4, 0xEB, 0xEC, 0xED, 0xF4, 0xFC, 0xFD})
+            INSTRUCTION_LENGTHS[op] = 0;
+    }
+
+    // Packed instruction fields
+    static final int OPCODE_MASK = 0x1FF;
+    static final int LENGTH_SHIFT = 9;
+    static final int OPERAND_SHIFT = 11;
+
+    static final class Block {
+        final int[] instructions;
+
+        Block(int[] instructions) {
+            this.instructions = instructions;
+        }
+    }
+
+    private final int[] decoded = new int[MAX_BLOCK_INSTRUCTIONS];  // Scratch for decode()
+
+    private final Block[][] romPages = new Block[MAX_ROM_SIZE >>> 8][];
+    private final Block[][] ramPages = new Block[0x20][];  // $C000-$DFFF
+    private final int[] ramPageGenerations = new int[0x20];  // Code generations ramPages were decoded at
+
+    private long hits;
+    private long misses;
+    private long uncached;
+
+    // Number of block lookups which found an already-decoded block
+    public long getHits() {
+        return hits;
+    }
+
+    // Number of blocks which had to be decoded
+    public long getMisses() {
+        return misses;
+    }
+
+    // Number of instructions executed from memory which isn't cached
+    public long getUncached() {
+        return uncached;
+    }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    // Returns the block starting at the given address, decoding it if necessary (null if not cacheable)
+    Block lookup(GameBoy gb, int address) {
+        Block[] page;
+        int index;
+        if (address < 0x8000) {
+            int romAddress = (address < 0x4000) ? address : gb.cartridge.mbc.getRomBankOffset() + address;
+            index = romAddress >>> 8;
+            page = romPages[index];
+            if (page == null)
+                page = romPages[index] = new Block[0x100];
+        } else if (address >= 0xC000 && address < 0xE000) {
+            index = (address - 0xC000) >>> 8;
+            int generation = gb.mmu.getCodeGeneration(index);
+            if (index < 0x1F)
+                generation += gb.mmu.getCodeGeneration(index + 1);
+            if (ramPageGenerations[index] != generation) {
+                // Decoded code in the page has been overwritten
+                ramPages[index] = null;
+                ramPageGenerations[index] = generation;
+            }
+            page = ramPages[index];
+            if (page == null)
+                page = ramPages[index] = new Block[0x100];
+        } else {
+            ++uncached;
+            return null;
+        }
+
+        Block block = page[address & 0xFF];
+        if (block != null) {
+            ++hits;
+            return block;
+        }
+
+        block = decode(gb.mmu, address);
+        if (block == null) {
+            ++uncached;
+            return null;
+        }
+        ++misses;
+        page[address & 0xFF] = block;
+        return block;
+    }
+
+    private Block decode(MMU mmu, int address) {
+        int count = 0;
+        // Blocks stay within one region, since the neighbouring one may be banked separately
+        int end = (address < 0x4000) ? 0x4000 : (address < 0x8000) ? 0x8000 : 0xE000;
+
+        while (count < MAX_BLOCK_INSTRUCTIONS) {
+            int opcode = mmu.read8((char) address);
+            int length = INSTRUCTION_LENGTHS[opcode];
+            if (length == 0 || address + length > end)
+                break;  // Leave undefined opcodes and instructions crossing regions to the interpreter
+
+            int operand = 0;
+            if (opcode == 0xCB)
+                opcode = 0x100 | mmu.read8((char) (address + 1));
+            else if (length == 2)
+                operand = mmu.read8((char) (address + 1));
+            else if (length == 3)
+                operand = mmu.read16((char) (address + 1));
+
+            if (address >= 0xC000) {
+                // Have the MMU report writes to the code, so that the block can be dropped
+                for (int j = 0; j < length; ++j)
+                    mmu.protectCode((char) (address + j));
+            }
+
+            decoded[count++] = opcode | (length << LENGTH_SHIFT) | (operand << OPERAND_SHIFT);
+            address += length;
+
+            if (endsBlock(opcode))
+                break;
+        }
+        return (count == 0) ? null : new Block(Arrays.copyOf(decoded, count));
+    }
+
+    private static boolean endsBlock(int opcode) {
+        switch (opcode) {
+            case 0x10: case 0x76:  // STOP, HALT
+            case 0x18: case 0x20: case 0x28: case 0x30: case 0x38:  // JR
+            case 0xC2: case 0xC3: case 0xCA: case 0xD2: case 0xDA: case 0xE9:  // JP
+            case 0xC4: case 0xCC: case 0xCD: case 0xD4: case 0xDC:  // CALL
+            case 0xC0: case 0xC8: case 0xC9: case 0xD0: case 0xD8: case 0xD9:  // RET, RETI
+            case 0xC7: case 0xCF: case 0xD7: case 0xDF: case 0xE7: case 0xEF: case 0xF7: case 0xFF:  // RST
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -2,18 +2,89 @@ package creativename.gamedroid.core;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 /* Sharp LR35902 interpreter */
 public class CPU implements Serializable {
-    public Register a, b, c, d, e, h, l, sp, pc;
+    // Matches the implicit UID of the original class so older save states still load
+    private static final long serialVersionUID = -4886781438895946635L;
+
+    // Cycles which pass per execInstruction() call while halted
+    static final int HALTED_CYCLES = 4;
+
+    static final int STATE_SIZE = 13;
+
+    /* Save states keep the layout from when registers were stored as objects
+       (see writeObject/readObject) */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("a", Register.class),
+        new ObjectStreamField("b", Register.class),
+        new ObjectStreamField("c", Register.class),
+        new ObjectStreamField("d", Register.class),
+        new ObjectStreamField("e", Register.class),
+        new ObjectStreamField("h", Register.class),
+        new ObjectStreamField("l", Register.class),
+        new ObjectStreamField("sp", Register.class),
+        new ObjectStreamField("pc", Register.class),
+        new ObjectStreamField("f", FlagRegister.class),
+        new ObjectStreamField("interruptsEnabled", Boolean.TYPE),
+        new ObjectStreamField("halted", Boolean.TYPE),
+        new ObjectStreamField("haltBugTriggered", Boolean.TYPE),
+        new ObjectStreamField("executionMode", ExecutionMode.class)
+    };
+
+    // Register file
+    private int regA, regB, regC, regD, regE, regH, regL, regF;
+    private int regSP, regPC;
+
+    /* Lazy flags: instead of computing flags after each ALU operation, the switch-dispatch core
+       records the operation and its result, and regF is only brought up to date when something
+       reads the flags. flagOperands holds x ^ y for ADD/SUB (bit 4 of x ^ y ^ result is the half
+       carry) or the preserved carry flag for INC/DEC */
+    private transient boolean lazyFlags = true;
+    private transient int flagOp;
+    private transient int flagResult;
+    private transient int flagOperands;
+
+    /* Idle loop detection: polling loops (e.g., waiting for LY to reach some value) only read
+       memory which can't change before the next scheduled event. Once an iteration of such a loop
+       leaves the CPU in exactly the same state as the previous one (with no events or interrupts in
+       between), every iteration up to the next event would do the same, so they are skipped (see
+       skipIdleLoop()) */
+    private static final int MAX_IDLE_LOOP_BYTES = 16;
+    private transient boolean idleLoopSkipping = true;
+    private transient int idleLoopHead = -1;
+    private transient int idleLoopSP;
+    private transient long idleLoopRegisters;
+    private transient long idleLoopFlags;
+    private transient long idleLoopBranchCycles;  // When the loop's branch was last taken
+    private transient long idleLoopDispatches;    // Scheduler event dispatches at that point
+    private transient long idleCyclesSkipped;
+
+    /* Block-cache core: the block being executed, the index and address of its next instruction.
+       The block is only continued while the MMU's mapping generation stays the same */
+    private transient BlockCache blockCache;
+    private transient BlockCache.Block currentBlock;
+    private transient int blockIndex;
+    private transient int blockPC;
+    private transient int blockGeneration;
+    private transient boolean operandCached;  // Whether fetch8()/fetch16() should use cachedOperand
+    private transient int cachedOperand;
+
+    // Views of the register file
+    public transient Register a, b, c, d, e, h, l, sp, pc;
     public transient Register af, bc, de, hl;
-    public FlagRegister f;
+    public transient FlagRegister f;
     public transient GameBoy gb;
     private boolean interruptsEnabled;
     private boolean halted;
     public boolean haltBugTriggered;
+    private ExecutionMode executionMode;
+    public transient long instructionCount;  // Instructions executed (for measuring MIPS)
 
     /* These are not actual cursors to read or write from, but special singleton values used as
        signals for interpreting instruction operands. */
@@ -26,6 +97,46 @@ public class CPU implements Serializable {
     private transient InstructionForm oneByteInstructions[];
     private transient InstructionForm twoByteInstructions[];
 
+    // Register view indices
+    private static final int REG_A = 0;
+    private static final int REG_B = 1;
+    private static final int REG_C = 2;
+    private static final int REG_D = 3;
+    private static final int REG_E = 4;
+    private static final int REG_H = 5;
+    private static final int REG_L = 6;
+    private static final int REG_SP = 7;
+    private static final int REG_PC = 8;
+    private static final int REG_AF = 9;
+    private static final int REG_BC = 10;
+    private static final int REG_DE = 11;
+    private static final int REG_HL = 12;
+
+    // Flag bitmasks used by the switch-dispatch interpreter
+    private static final int FLAG_ZERO = 0x80;
+    private static final int FLAG_SUBTRACTION = 0x40;
+    private static final int FLAG_HALF_CARRY = 0x20;
+    private static final int FLAG_CARRY = 0x10;
+
+    // Operations with deferred flag results
+    private static final int LAZY_NONE = 0;
+    private static final int LAZY_ADD = 1;
+    private static final int LAZY_SUB = 2;
+    private static final int LAZY_AND = 3;
+    private static final int LAZY_OR = 4;
+    private static final int LAZY_INC = 5;
+    private static final int LAZY_DEC = 6;
+
+    /* Interpreter cores. The table-driven core executes InstructionForms from the lookup tables,
+       the switch-dispatch core is a flattened equivalent which works on register values directly.
+       The block-cache core runs the switch-dispatch handlers on instructions decoded ahead of time
+       (see BlockCache) */
+    public enum ExecutionMode {
+        TABLE_DRIVEN,
+        SWITCH_DISPATCH,
+        BLOCK_CACHE
+    }
+
     public enum Interrupt {
         VBLANK(0x01),
         LCD(0x02),
@@ -45,24 +156,59 @@ public class CPU implements Serializable {
     }
 
     public CPU(GameBoy gb) {
-        this.gb = gb;
+        this(gb, ExecutionMode.SWITCH_DISPATCH);
+    }
 
-        a = new Register8();
-        b = new Register8();
-        c = new Register8();
-        d = new Register8();
-        e = new Register8();
-        h = new Register8();
-        l = new Register8();
-        f = new FlagRegister();
-        af = new ConcatRegister((Register8) a, f);
-        bc = new ConcatRegister((Register8) b, (Register8) c);
-        de = new ConcatRegister((Register8) d, (Register8) e);
-        hl = new ConcatRegister((Register8) h, (Register8) l);
-        sp = new Register16();
-        pc = new Register16();
+    public CPU(GameBoy gb, ExecutionMode mode) {
+        this.gb = gb;
+        executionMode = mode;
+        createRegisterViews();
         reset();
-        genLookupTables();
+        if (executionMode == ExecutionMode.TABLE_DRIVEN)
+            genLookupTables();
+        else if (executionMode == ExecutionMode.BLOCK_CACHE)
+            blockCache = new BlockCache();
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    // Decoded block cache and its statistics (null unless using the block-cache core)
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    public boolean hasLazyFlags() {
+        return lazyFlags;
+    }
+
+    public void setLazyFlags(boolean enabled) {
+        // Bring the flag register up to date before switching strategies
+        materializeFlags();
+        lazyFlags = enabled;
+    }
+
+    public boolean hasIdleLoopSkipping() {
+        return idleLoopSkipping;
+    }
+
+    public void setIdleLoopSkipping(boolean enabled) {
+        idleLoopSkipping = enabled;
+        idleLoopHead = -1;
+    }
+
+    // Number of cycles skipped over in idle loops (i.e., how much a ROM gains from skipping them)
+    public long getIdleCyclesSkipped() {
+        return idleCyclesSkipped;
+    }
+
+    public void resetIdleCyclesSkipped() {
+        idleCyclesSkipped = 0;
     }
 
     private void genLookupTables() {
@@ -527,82 +673,174 @@ public class CPU implements Serializable {
         }
     }
 
+    private void createRegisterViews() {
+        a = new RegisterView(REG_A);
+        b = new RegisterView(REG_B);
+        c = new RegisterView(REG_C);
+        d = new RegisterView(REG_D);
+        e = new RegisterView(REG_E);
+        h = new RegisterView(REG_H);
+        l = new RegisterView(REG_L);
+        f = new FlagRegisterView();
+        sp = new RegisterView(REG_SP);
+        pc = new RegisterView(REG_PC);
+        af = new RegisterView(REG_AF);
+        bc = new RegisterView(REG_BC);
+        de = new RegisterView(REG_DE);
+        hl = new RegisterView(REG_HL);
+    }
+
+    private static Register8 saveRegister8(int value) {
+        Register8 reg = new Register8();
+        reg.write((char) value);
+        return reg;
+    }
+
+    private static Register16 saveRegister16(int value) {
+        Register16 reg = new Register16();
+        reg.write((char) value);
+        return reg;
+    }
+
+    /* The execution mode isn't part of the state: a state runs the same whichever core loads it,
+       unlike with serialized states, which switch to the core that saved them */
+    void saveState(ByteBuffer buffer) {
+        buffer.put((byte) regA);
+        buffer.put((byte) regB);
+        buffer.put((byte) regC);
+        buffer.put((byte) regD);
+        buffer.put((byte) regE);
+        buffer.put((byte) regH);
+        buffer.put((byte) regL);
+        buffer.put((byte) materializeFlags());
+        buffer.putChar((char) regSP);
+        buffer.putChar((char) regPC);
+        buffer.put((byte) ((interruptsEnabled ? 1 : 0) | (halted ? 2 : 0) | (haltBugTriggered ? 4 : 0)));
+    }
+
+    void loadState(ByteBuffer buffer) {
+        regA = buffer.get() & 0xFF;
+        regB = buffer.get() & 0xFF;
+        regC = buffer.get() & 0xFF;
+        regD = buffer.get() & 0xFF;
+        regE = buffer.get() & 0xFF;
+        regH = buffer.get() & 0xFF;
+        regL = buffer.get() & 0xFF;
+        regF = buffer.get() & 0xFF;
+        flagOp = LAZY_NONE;
+        regSP = buffer.getChar();
+        regPC = buffer.getChar();
+        int flags = buffer.get();
+        interruptsEnabled = (flags & 1) != 0;
+        halted = (flags & 2) != 0;
+        haltBugTriggered = (flags & 4) != 0;
+
+        // Nothing carries over from the code that was running
+        idleLoopHead = -1;
+        currentBlock = null;
+        operandCached = false;
+    }
+
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        ObjectOutputStream.PutField fields = stream.putFields();
+        FlagRegister flags = new FlagRegister();
+        flags.write((char) materializeFlags());
+
+        fields.put("a", saveRegister8(regA));
+        fields.put("b", saveRegister8(regB));
+        fields.put("c", saveRegister8(regC));
+        fields.put("d", saveRegister8(regD));
+        fields.put("e", saveRegister8(regE));
+        fields.put("h", saveRegister8(regH));
+        fields.put("l", saveRegister8(regL));
+        fields.put("sp", saveRegister16(regSP));
+        fields.put("pc", saveRegister16(regPC));
+        fields.put("f", flags);
+        fields.put("interruptsEnabled", interruptsEnabled);
+        fields.put("halted", halted);
+        fields.put("haltBugTriggered", haltBugTriggered);
+        fields.put("executionMode", executionMode);
+        stream.writeFields();
+    }
+
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
-        // Reconstruct the instruction lookup tables and concat registers after deserialization
-        stream.defaultReadObject();
-        af = new ConcatRegister((Register8) a, f);
-        bc = new ConcatRegister((Register8) b, (Register8) c);
-        de = new ConcatRegister((Register8) d, (Register8) e);
-        hl = new ConcatRegister((Register8) h, (Register8) l);
-        genLookupTables();
+        ObjectInputStream.GetField fields = stream.readFields();
+        regA = ((Register) fields.get("a", null)).read();
+        regB = ((Register) fields.get("b", null)).read();
+        regC = ((Register) fields.get("c", null)).read();
+        regD = ((Register) fields.get("d", null)).read();
+        regE = ((Register) fields.get("e", null)).read();
+        regH = ((Register) fields.get("h", null)).read();
+        regL = ((Register) fields.get("l", null)).read();
+        regSP = ((Register) fields.get("sp", null)).read();
+        regPC = ((Register) fields.get("pc", null)).read();
+        regF = ((Register) fields.get("f", null)).read();
+        interruptsEnabled = fields.get("interruptsEnabled", false);
+        halted = fields.get("halted", false);
+        haltBugTriggered = fields.get("haltBugTriggered", false);
+        lazyFlags = true;
+        idleLoopSkipping = true;
+        idleLoopHead = -1;
+
+        // States saved before the switch-dispatch core existed don't record an execution mode
+        executionMode = (ExecutionMode) fields.get("executionMode", ExecutionMode.SWITCH_DISPATCH);
+        if (executionMode == null)
+            executionMode = ExecutionMode.SWITCH_DISPATCH;
+
+        // Reconstruct the register views and instruction lookup tables after deserialization
+        createRegisterViews();
+        if (executionMode == ExecutionMode.TABLE_DRIVEN)
+            genLookupTables();
+        else if (executionMode == ExecutionMode.BLOCK_CACHE)
+            blockCache = new BlockCache();
     }
 
     private void pushStack(char value) {
-        sp.decrement();
-        sp.decrement();
-        gb.mmu.write16(sp.read(), value);
+        regSP = (regSP - 2) & 0xFFFF;
+        gb.mmu.write16((char) regSP, value);
     }
 
     private char popStack() {
-        char val = gb.mmu.read16(sp.read());
-        sp.increment();
-        sp.increment();
+        char val = gb.mmu.read16((char) regSP);
+        regSP = (regSP + 2) & 0xFFFF;
         return val;
     }
 
     public void raiseInterrupt(Interrupt interrupt) {
         // Request an interrupt (to be serviced before executing the next instruction)
-        char raisedInterrupts = (char) (gb.mmu.read8((char) 0xFF0F) | interrupt.getBitmask());
-        gb.mmu.write8((char) 0xFF0F, raisedInterrupts);
+        gb.mmu.raiseInterrupt(interrupt.getBitmask());
         halted = false;
         gb.stopped = false;
     }
 
     public void reset() {
         // These are the effective output of the boot rom (an internal rom inside every GameBoy)
-        af.write((char) 0x01B0);
-        bc.write((char) 0x0013);
-        de.write((char) 0x00D8);
-        hl.write((char) 0x014D);
-        pc.write((char) 0x0100);
-        sp.write((char) 0xFFFE);
+        setAF(0x01B0);
+        setBC(0x0013);
+        setDE(0x00D8);
+        setHL(0x014D);
+        regPC = 0x0100;
+        regSP = 0xFFFE;
     }
 
     public int execInstruction() {
-        if (halted) return 4;
-
-        char raisedInterrupts = gb.mmu.read8((char) 0xFF0F);
-        char enabledInterrupts = gb.mmu.read8((char) 0xFFFF);
-        byte raisedEnabledInterrupts = (byte) (enabledInterrupts & raisedInterrupts);
-
-        // Service interrupts
-        if (interruptsEnabled && (raisedEnabledInterrupts & 0x1F) != 0) {
-            interruptsEnabled = false;
-            pushStack(pc.read());
-
-            // Jump to interrupt handler according to priority
-            if ((raisedEnabledInterrupts & Interrupt.VBLANK.getBitmask()) != 0) {
-                raisedInterrupts &= ~Interrupt.VBLANK.getBitmask();
-                pc.write((char) 0x40);
-            } else if ((raisedEnabledInterrupts & Interrupt.LCD.getBitmask()) != 0) {
-                raisedInterrupts &= ~Interrupt.LCD.getBitmask();
-                pc.write((char) 0x48);
-            } else if ((raisedEnabledInterrupts & Interrupt.TIMER.getBitmask()) != 0) {
-                raisedInterrupts &= ~Interrupt.TIMER.getBitmask();
-                pc.write((char) 0x50);
-            } else if ((raisedEnabledInterrupts & Interrupt.SERIAL.getBitmask()) != 0) {
-                raisedInterrupts &= ~Interrupt.SERIAL.getBitmask();
-                pc.write((char) 0x58);
-            } else {
-                raisedInterrupts &= ~Interrupt.JOYPAD.getBitmask();
-                pc.write((char) 0x60);
-            }
+        if (halted) return HALTED_CYCLES;
+
+        // Service interrupts (the pending mask is nonzero only if an interrupt is raised and enabled)
+        int pendingInterrupts = gb.mmu.interrupts.getPending();
+        if (pendingInterrupts != 0 && interruptsEnabled)
+            serviceInterrupt(pendingInterrupts);
 
-            // Write new flags (with bit for serviced interrupt unset)
-            gb.mmu.write8((char) 0xFF0F, raisedInterrupts);
+        if (executionMode == ExecutionMode.BLOCK_CACHE && !haltBugTriggered) {
+            ++instructionCount;
+            return executeCached();
         }
 
-        char optByte = gb.mmu.read8(pc.read());
+        char optByte = gb.mmu.read8((char) regPC);
+        ++instructionCount;
+
+        if (executionMode != ExecutionMode.TABLE_DRIVEN)
+            return dispatch(optByte);
 
         // $CB prefix -> instruction is two bytes
         if (optByte == 0xCB) {
@@ -613,6 +851,2296 @@ public class CPU implements Serializable {
         }
     }
 
+    private void serviceInterrupt(int pendingInterrupts) {
+        interruptsEnabled = false;
+        pushStack((char) regPC);
+
+        // Jump to interrupt handler according to priority
+        Interrupt interrupt;
+        if ((pendingInterrupts & Interrupt.VBLANK.getBitmask()) != 0) {
+            interrupt = Interrupt.VBLANK;
+            regPC = 0x40;
+        } else if ((pendingInterrupts & Interrupt.LCD.getBitmask()) != 0) {
+            interrupt = Interrupt.LCD;
+            regPC = 0x48;
+        } else if ((pendingInterrupts & Interrupt.TIMER.getBitmask()) != 0) {
+            interrupt = Interrupt.TIMER;
+            regPC = 0x50;
+        } else if ((pendingInterrupts & Interrupt.SERIAL.getBitmask()) != 0) {
+            interrupt = Interrupt.SERIAL;
+            regPC = 0x58;
+        } else {
+            interrupt = Interrupt.JOYPAD;
+            regPC = 0x60;
+        }
+
+        // Unset the serviced interrupt's flag
+        gb.mmu.interrupts.acknowledge(interrupt.getBitmask());
+    }
+
+    private void halt() {
+        /* BUG: If interrupt master enable is unset but some interrupts are enabled and raised,
+           halt mode is not entered and PC will not be incremented after fetching the next
+           opcode. E.g.,
+
+           $3E $14  (LD A,$14) will be executed as:
+
+           $3E $3E  (LD A,$3E)
+           $14      (INC D) */
+        halted = (interruptsEnabled || gb.mmu.interrupts.getPending() == 0);
+        haltBugTriggered = !halted;
+    }
+
+    /* Switch-dispatch interpreter
+
+       Each case is the flattened equivalent of the corresponding InstructionForm in the lookup
+       tables (same cycle counts and memory accesses), but operates on register values directly
+       instead of going through the Register/Cursor interfaces. */
+    private int dispatch(int opcode) {
+        // $CB prefix -> instruction is two bytes
+        if (opcode == 0xCB) {
+            regPC = (regPC + 1) & 0xFFFF;
+            int cbOpcode = gb.mmu.read8((char) regPC);
+            advancePC();
+            return executeCB(cbOpcode);
+        }
+        advancePC();
+        return execute(opcode);
+    }
+
+    private int executeCached() {
+        BlockCache.Block block = currentBlock;
+        int i = blockIndex;
+        int generation = gb.mmu.getMappingGeneration();
+        if (block == null || regPC != blockPC || i >= block.instructions.length || generation != blockGeneration) {
+            // Not continuing straight on through the current block
+            block = blockCache.lookup(gb, regPC);
+            if (block == null) {
+                currentBlock = null;
+                return dispatch(gb.mmu.read8((char) regPC));
+            }
+            i = 0;
+            blockGeneration = generation;
+        }
+        currentBlock = block;
+        blockIndex = i + 1;
+
+        int instruction = block.instructions[i];
+        regPC = blockPC = (regPC + ((instruction >>> BlockCache.LENGTH_SHIFT) & 3)) & 0xFFFF;
+        int opcode = instruction & BlockCache.OPCODE_MASK;
+        if (opcode > 0xFF)
+            return executeCB(opcode & 0xFF);
+        if (instruction >= (2 << BlockCache.LENGTH_SHIFT)) {  // Longer than one byte, so it has an operand
+            cachedOperand = instruction >>> BlockCache.OPERAND_SHIFT;
+            operandCached = true;
+        }
+        return execute(opcode);
+    }
+
+    private void advancePC() {
+        // See halt()
+        if (!haltBugTriggered)
+            regPC = (regPC + 1) & 0xFFFF;
+        else
+            haltBugTriggered = false;
+    }
+
+    private int execute(int opcode) {
+        switch (opcode) {
+            case 0x00:  // NOP
+                return 4;
+            case 0x01:  // LD BC,nn
+                setBC(fetch16());
+                return 12;
+            case 0x02:  // LD (BC),A
+                write8(getBC(), regA);
+                return 8;
+            case 0x03:  // INC BC
+                setBC((getBC() + 1) & 0xFFFF);
+                return 8;
+            case 0x04:  // INC B
+                regB = inc8(regB);
+                return 4;
+            case 0x05:  // DEC B
+                regB = dec8(regB);
+                return 4;
+            case 0x06:  // LD B,n
+                regB = fetch8();
+                return 8;
+            case 0x07:  // RLCA
+                regA = rlc(regA, false);
+                return 4;
+            case 0x08:  // LD (nn),SP
+                gb.mmu.write16((char) fetch16(), (char) regSP);
+                return 20;
+            case 0x09:  // ADD HL,BC
+                add16(getBC());
+                return 8;
+            case 0x0A:  // LD A,(BC)
+                regA = read8(getBC());
+                return 8;
+            case 0x0B:  // DEC BC
+                setBC((getBC() - 1) & 0xFFFF);
+                return 8;
+            case 0x0C:  // INC C
+                regC = inc8(regC);
+                return 4;
+            case 0x0D:  // DEC C
+                regC = dec8(regC);
+                return 4;
+            case 0x0E:  // LD C,n
+                regC = fetch8();
+                return 8;
+            case 0x0F:  // RRCA
+                regA = rrc(regA, false);
+                return 4;
+            case 0x10:  // STOP
+                fetch8();
+                gb.stopped = true;
+                return 4;
+            case 0x11:  // LD DE,nn
+                setDE(fetch16());
+                return 12;
+            case 0x12:  // LD (DE),A
+                write8(getDE(), regA);
+                return 8;
+            case 0x13:  // INC DE
+                setDE((getDE() + 1) & 0xFFFF);
+                return 8;
+            case 0x14:  // INC D
+                regD = inc8(regD);
+                return 4;
+            case 0x15:  // DEC D
+                regD = dec8(regD);
+                return 4;
+            case 0x16:  // LD D,n
+                regD = fetch8();
+                return 8;
+            case 0x17:  // RLA
+                regA = rl(regA, false);
+                return 4;
+            case 0x18: {  // JR n
+                int offset = fetch8();
+                jumpRelative(offset);
+                return 12 + idleLoopCycles(offset);
+            }
+            case 0x19:  // ADD HL,DE
+                add16(getDE());
+                return 8;
+            case 0x1A:  // LD A,(DE)
+                regA = read8(getDE());
+                return 8;
+            case 0x1B:  // DEC DE
+                setDE((getDE() - 1) & 0xFFFF);
+                return 8;
+            case 0x1C:  // INC E
+                regE = inc8(regE);
+                return 4;
+            case 0x1D:  // DEC E
+                regE = dec8(regE);
+                return 4;
+            case 0x1E:  // LD E,n
+                regE = fetch8();
+                return 8;
+            case 0x1F:  // RRA
+                regA = rr(regA, false);
+                return 4;
+            case 0x20: {  // JR NZ,n
+                int offset = fetch8();
+                if (!zeroFlagSet()) {
+                    jumpRelative(offset);
+                    return 12 + idleLoopCycles(offset);
+                }
+                return 8;
+            }
+            case 0x21:  // LD HL,nn
+                setHL(fetch16());
+                return 12;
+            case 0x22: {  // LDI (HL),A
+                int address = getHL();
+                write8(address, regA);
+                setHL((address + 1) & 0xFFFF);
+                return 8;
+            }
+            case 0x23:  // INC HL
+                setHL((getHL() + 1) & 0xFFFF);
+                return 8;
+            case 0x24:  // INC H
+                regH = inc8(regH);
+                return 4;
+            case 0x25:  // DEC H
+                regH = dec8(regH);
+                return 4;
+            case 0x26:  // LD H,n
+                regH = fetch8();
+                return 8;
+            case 0x27:  // DAA
+                daa();
+                return 4;
+            case 0x28: {  // JR Z,n
+                int offset = fetch8();
+                if (zeroFlagSet()) {
+                    jumpRelative(offset);
+                    return 12 + idleLoopCycles(offset);
+                }
+                return 8;
+            }
+            case 0x29:  // ADD HL,HL
+                add16(getHL());
+                return 8;
+            case 0x2A: {  // LDI A,(HL)
+                int address = getHL();
+                regA = read8(address);
+                setHL((address + 1) & 0xFFFF);
+                return 8;
+            }
+            case 0x2B:  // DEC HL
+                setHL((getHL() - 1) & 0xFFFF);
+                return 8;
+            case 0x2C:  // INC L
+                regL = inc8(regL);
+                return 4;
+            case 0x2D:  // DEC L
+                regL = dec8(regL);
+                return 4;
+            case 0x2E:  // LD L,n
+                regL = fetch8();
+                return 8;
+            case 0x2F:  // CPL
+                cpl();
+                return 4;
+            case 0x30: {  // JR NC,n
+                int offset = fetch8();
+                if (!carryFlagSet()) {
+                    jumpRelative(offset);
+                    return 12 + idleLoopCycles(offset);
+                }
+                return 8;
+            }
+            case 0x31:  // LD SP,nn
+                regSP = fetch16();
+                return 12;
+            case 0x32: {  // LDD (HL),A
+                int address = getHL();
+                write8(address, regA);
+                setHL((address - 1) & 0xFFFF);
+                return 8;
+            }
+            case 0x33:  // INC SP
+                regSP = (regSP + 1) & 0xFFFF;
+                return 8;
+            case 0x34: {  // INC (HL)
+                int address = getHL();
+                write8(address, inc8(read8(address)));
+                return 12;
+            }
+            case 0x35: {  // DEC (HL)
+                int address = getHL();
+                write8(address, dec8(read8(address)));
+                return 12;
+            }
+            case 0x36:  // LD (HL),n
+                write8(getHL(), fetch8());
+                return 12;
+            case 0x37:  // SCF
+                scf();
+                return 4;
+            case 0x38: {  // JR C,n
+                int offset = fetch8();
+                if (carryFlagSet()) {
+                    jumpRelative(offset);
+                    return 12 + idleLoopCycles(offset);
+                }
+                return 8;
+            }
+            case 0x39:  // ADD HL,SP
+                add16(regSP);
+                return 8;
+            case 0x3A: {  // LDD A,(HL)
+                int address = getHL();
+                regA = read8(address);
+                setHL((address - 1) & 0xFFFF);
+                return 8;
+            }
+            case 0x3B:  // DEC SP
+                regSP = (regSP - 1) & 0xFFFF;
+                return 8;
+            case 0x3C:  // INC A
+                regA = inc8(regA);
+                return 4;
+            case 0x3D:  // DEC A
+                regA = dec8(regA);
+                return 4;
+            case 0x3E:  // LD A,n
+                regA = fetch8();
+                return 8;
+            case 0x3F:  // CCF
+                ccf();
+                return 4;
+            case 0x40:  // LD B,B
+                return 4;
+            case 0x41:  // LD B,C
+                regB = regC;
+                return 4;
+            case 0x42:  // LD B,D
+                regB = regD;
+                return 4;
+            case 0x43:  // LD B,E
+                regB = regE;
+                return 4;
+            case 0x44:  // LD B,H
+                regB = regH;
+                return 4;
+            case 0x45:  // LD B,L
+                regB = regL;
+                return 4;
+            case 0x46:  // LD B,(HL)
+                regB = read8(getHL());
+                return 8;
+            case 0x47:  // LD B,A
+                regB = regA;
+                return 4;
+            case 0x48:  // LD C,B
+                regC = regB;
+                return 4;
+            case 0x49:  // LD C,C
+                return 4;
+            case 0x4A:  // LD C,D
+                regC = regD;
+                return 4;
+            case 0x4B:  // LD C,E
+                regC = regE;
+                return 4;
+            case 0x4C:  // LD C,H
+                regC = regH;
+                return 4;
+            case 0x4D:  // LD C,L
+                regC = regL;
+                return 4;
+            case 0x4E:  // LD C,(HL)
+                regC = read8(getHL());
+                return 8;
+            case 0x4F:  // LD C,A
+                regC = regA;
+                return 4;
+            case 0x50:  // LD D,B
+                regD = regB;
+                return 4;
+            case 0x51:  // LD D,C
+                regD = regC;
+                return 4;
+            case 0x52:  // LD D,D
+                return 4;
+            case 0x53:  // LD D,E
+                regD = regE;
+                return 4;
+            case 0x54:  // LD D,H
+                regD = regH;
+                return 4;
+            case 0x55:  // LD D,L
+                regD = regL;
+                return 4;
+            case 0x56:  // LD D,(HL)
+                regD = read8(getHL());
+                return 8;
+            case 0x57:  // LD D,A
+                regD = regA;
+                return 4;
+            case 0x58:  // LD E,B
+                regE = regB;
+                return 4;
+            case 0x59:  // LD E,C
+                regE = regC;
+                return 4;
+            case 0x5A:  // LD E,D
+                regE = regD;
+                return 4;
+            case 0x5B:  // LD E,E
+                return 4;
+            case 0x5C:  // LD E,H
+                regE = regH;
+                return 4;
+            case 0x5D:  // LD E,L
+                regE = regL;
+                return 4;
+            case 0x5E:  // LD E,(HL)
+                regE = read8(getHL());
+                return 8;
+            case 0x5F:  // LD E,A
+                regE = regA;
+                return 4;
+            case 0x60:  // LD H,B
+                regH = regB;
+                return 4;
+            case 0x61:  // LD H,C
+                regH = regC;
+                return 4;
+            case 0x62:  // LD H,D
+                regH = regD;
+                return 4;
+            case 0x63:  // LD H,E
+                regH = regE;
+                return 4;
+            case 0x64:  // LD H,H
+                return 4;
+            case 0x65:  // LD H,L
+                regH = regL;
+                return 4;
+            case 0x66:  // LD H,(HL)
+                regH = read8(getHL());
+                return 8;
+            case 0x67:  // LD H,A
+                regH = regA;
+                return 4;
+            case 0x68:  // LD L,B
+                regL = regB;
+                return 4;
+            case 0x69:  // LD L,C
+                regL = regC;
+                return 4;
+            case 0x6A:  // LD L,D
+                regL = regD;
+                return 4;
+            case 0x6B:  // LD L,E
+                regL = regE;
+                return 4;
+            case 0x6C:  // LD L,H
+                regL = regH;
+                return 4;
+            case 0x6D:  // LD L,L
+                return 4;
+            case 0x6E:  // LD L,(HL)
+                regL = read8(getHL());
+                return 8;
+            case 0x6F:  // LD L,A
+                regL = regA;
+                return 4;
+            case 0x70:  // LD (HL),B
+                write8(getHL(), regB);
+                return 8;
+            case 0x71:  // LD (HL),C
+                write8(getHL(), regC);
+                return 8;
+            case 0x72:  // LD (HL),D
+                write8(getHL(), regD);
+                return 8;
+            case 0x73:  // LD (HL),E
+                write8(getHL(), regE);
+                return 8;
+            case 0x74:  // LD (HL),H
+                write8(getHL(), regH);
+                return 8;
+            case 0x75:  // LD (HL),L
+                write8(getHL(), regL);
+                return 8;
+            case 0x76:  // HALT
+                halt();
+                return 4;
+            case 0x77:  // LD (HL),A
+                write8(getHL(), regA);
+                return 8;
+            case 0x78:  // LD A,B
+                regA = regB;
+                return 4;
+            case 0x79:  // LD A,C
+                regA = regC;
+                return 4;
+            case 0x7A:  // LD A,D
+                regA = regD;
+                return 4;
+            case 0x7B:  // LD A,E
+                regA = regE;
+                return 4;
+            case 0x7C:  // LD A,H
+                regA = regH;
+                return 4;
+            case 0x7D:  // LD A,L
+                regA = regL;
+                return 4;
+            case 0x7E:  // LD A,(HL)
+                regA = read8(getHL());
+                return 8;
+            case 0x7F:  // LD A,A
+                return 4;
+            case 0x80:  // ADD A,B
+                add8(regB, 0);
+                return 4;
+            case 0x81:  // ADD A,C
+                add8(regC, 0);
+                return 4;
+            case 0x82:  // ADD A,D
+                add8(regD, 0);
+                return 4;
+            case 0x83:  // ADD A,E
+                add8(regE, 0);
+                return 4;
+            case 0x84:  // ADD A,H
+                add8(regH, 0);
+                return 4;
+            case 0x85:  // ADD A,L
+                add8(regL, 0);
+                return 4;
+            case 0x86:  // ADD A,(HL)
+                add8(read8(getHL()), 0);
+                return 8;
+            case 0x87:  // ADD A,A
+                add8(regA, 0);
+                return 4;
+            case 0x88:  // ADC A,B
+                add8(regB, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x89:  // ADC A,C
+                add8(regC, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x8A:  // ADC A,D
+                add8(regD, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x8B:  // ADC A,E
+                add8(regE, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x8C:  // ADC A,H
+                add8(regH, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x8D:  // ADC A,L
+                add8(regL, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x8E:  // ADC A,(HL)
+                add8(read8(getHL()), carryFlagSet() ? 1 : 0);
+                return 8;
+            case 0x8F:  // ADC A,A
+                add8(regA, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x90:  // SUB B
+                sub8(regB, 0);
+                return 4;
+            case 0x91:  // SUB C
+                sub8(regC, 0);
+                return 4;
+            case 0x92:  // SUB D
+                sub8(regD, 0);
+                return 4;
+            case 0x93:  // SUB E
+                sub8(regE, 0);
+                return 4;
+            case 0x94:  // SUB H
+                sub8(regH, 0);
+                return 4;
+            case 0x95:  // SUB L
+                sub8(regL, 0);
+                return 4;
+            case 0x96:  // SUB (HL)
+                sub8(read8(getHL()), 0);
+                return 8;
+            case 0x97:  // SUB A
+                sub8(regA, 0);
+                return 4;
+            case 0x98:  // SBC A,B
+                sub8(regB, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x99:  // SBC A,C
+                sub8(regC, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x9A:  // SBC A,D
+                sub8(regD, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x9B:  // SBC A,E
+                sub8(regE, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x9C:  // SBC A,H
+                sub8(regH, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x9D:  // SBC A,L
+                sub8(regL, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0x9E:  // SBC A,(HL)
+                sub8(read8(getHL()), carryFlagSet() ? 1 : 0);
+                return 8;
+            case 0x9F:  // SBC A,A
+                sub8(regA, carryFlagSet() ? 1 : 0);
+                return 4;
+            case 0xA0:  // AND B
+                and8(regB);
+                return 4;
+            case 0xA1:  // AND C
+                and8(regC);
+                return 4;
+            case 0xA2:  // AND D
+                and8(regD);
+                return 4;
+            case 0xA3:  // AND E
+                and8(regE);
+                return 4;
+            case 0xA4:  // AND H
+                and8(regH);
+                return 4;
+            case 0xA5:  // AND L
+                and8(regL);
+                return 4;
+            case 0xA6:  // AND (HL)
+                and8(read8(getHL()));
+                return 8;
+            case 0xA7:  // AND A
+                and8(regA);
+                return 4;
+            case 0xA8:  // XOR B
+                xor8(regB);
+                return 4;
+            case 0xA9:  // XOR C
+                xor8(regC);
+                return 4;
+            case 0xAA:  // XOR D
+                xor8(regD);
+                return 4;
+            case 0xAB:  // XOR E
+                xor8(regE);
+                return 4;
+            case 0xAC:  // XOR H
+                xor8(regH);
+                return 4;
+            case 0xAD:  // XOR L
+                xor8(regL);
+                return 4;
+            case 0xAE:  // XOR (HL)
+                xor8(read8(getHL()));
+                return 8;
+            case 0xAF:  // XOR A
+                xor8(regA);
+                return 4;
+            case 0xB0:  // OR B
+                or8(regB);
+                return 4;
+            case 0xB1:  // OR C
+                or8(regC);
+                return 4;
+            case 0xB2:  // OR D
+                or8(regD);
+                return 4;
+            case 0xB3:  // OR E
+                or8(regE);
+                return 4;
+            case 0xB4:  // OR H
+                or8(regH);
+                return 4;
+            case 0xB5:  // OR L
+                or8(regL);
+                return 4;
+            case 0xB6:  // OR (HL)
+                or8(read8(getHL()));
+                return 8;
+            case 0xB7:  // OR A
+                or8(regA);
+                return 4;
+            case 0xB8:  // CP B
+                cp8(regB);
+                return 4;
+            case 0xB9:  // CP C
+                cp8(regC);
+                return 4;
+            case 0xBA:  // CP D
+                cp8(regD);
+                return 4;
+            case 0xBB:  // CP E
+                cp8(regE);
+                return 4;
+            case 0xBC:  // CP H
+                cp8(regH);
+                return 4;
+            case 0xBD:  // CP L
+                cp8(regL);
+                return 4;
+            case 0xBE:  // CP (HL)
+                cp8(read8(getHL()));
+                return 8;
+            case 0xBF:  // CP A
+                cp8(regA);
+                return 4;
+            case 0xC0:  // RET NZ
+                if (!zeroFlagSet()) {
+                    regPC = popStack();
+                    return 20;
+                }
+                return 8;
+            case 0xC1:  // POP BC
+                setBC(popStack());
+                return 12;
+            case 0xC2: {  // JP NZ,nn
+                int address = fetch16();
+                if (!zeroFlagSet()) {
+                    regPC = address;
+                    return 16;
+                }
+                return 12;
+            }
+            case 0xC3:  // JP nn
+                regPC = fetch16();
+                return 16;
+            case 0xC4: {  // CALL NZ,nn
+                int address = fetch16();
+                if (!zeroFlagSet()) {
+                    call(address);
+                    return 24;
+                }
+                return 12;
+            }
+            case 0xC5:  // PUSH BC
+                pushStack((char) getBC());
+                return 16;
+            case 0xC6:  // ADD A,n
+                add8(fetch8(), 0);
+                return 8;
+            case 0xC7:  // RST $00
+                call(0x00);
+                return 16;
+            case 0xC8:  // RET Z
+                if (zeroFlagSet()) {
+                    regPC = popStack();
+                    return 20;
+                }
+                return 8;
+            case 0xC9:  // RET
+                regPC = popStack();
+                return 16;
+            case 0xCA: {  // JP Z,nn
+                int address = fetch16();
+                if (zeroFlagSet()) {
+                    regPC = address;
+                    return 16;
+                }
+                return 12;
+            }
+            case 0xCC: {  // CALL Z,nn
+                int address = fetch16();
+                if (zeroFlagSet()) {
+                    call(address);
+                    return 24;
+                }
+                return 12;
+            }
+            case 0xCD:  // CALL nn
+                call(fetch16());
+                return 24;
+            case 0xCE:  // ADC A,n
+                add8(fetch8(), carryFlagSet() ? 1 : 0);
+                return 8;
+            case 0xCF:  // RST $08
+                call(0x08);
+                return 16;
+            case 0xD0:  // RET NC
+                if (!carryFlagSet()) {
+                    regPC = popStack();
+                    return 20;
+                }
+                return 8;
+            case 0xD1:  // POP DE
+                setDE(popStack());
+                return 12;
+            case 0xD2: {  // JP NC,nn
+                int address = fetch16();
+                if (!carryFlagSet()) {
+                    regPC = address;
+                    return 16;
+                }
+                return 12;
+            }
+            case 0xD4: {  // CALL NC,nn
+                int address = fetch16();
+                if (!carryFlagSet()) {
+                    call(address);
+                    return 24;
+                }
+                return 12;
+            }
+            case 0xD5:  // PUSH DE
+                pushStack((char) getDE());
+                return 16;
+            case 0xD6:  // SUB n
+                sub8(fetch8(), 0);
+                return 8;
+            case 0xD7:  // RST $10
+                call(0x10);
+                return 16;
+            case 0xD8:  // RET C
+                if (carryFlagSet()) {
+                    regPC = popStack();
+                    return 20;
+                }
+                return 8;
+            case 0xD9:  // RETI
+                regPC = popStack();
+                interruptsEnabled = true;
+                return 16;
+            case 0xDA: {  // JP C,nn
+                int address = fetch16();
+                if (carryFlagSet()) {
+                    regPC = address;
+                    return 16;
+                }
+                return 12;
+            }
+            case 0xDC: {  // CALL C,nn
+                int address = fetch16();
+                if (carryFlagSet()) {
+                    call(address);
+                    return 24;
+                }
+                return 12;
+            }
+            case 0xDE:  // SBC A,n
+                sub8(fetch8(), carryFlagSet() ? 1 : 0);
+                return 8;
+            case 0xDF:  // RST $18
+                call(0x18);
+                return 16;
+            case 0xE0:  // LDH (n),A
+                write8(0xFF00 | fetch8(), regA);
+                return 12;
+            case 0xE1:  // POP HL
+                setHL(popStack());
+                return 12;
+            case 0xE2:  // LD (C),A
+                write8(0xFF00 | regC, regA);
+                return 8;
+            case 0xE5:  // PUSH HL
+                pushStack((char) getHL());
+                return 16;
+            case 0xE6:  // AND n
+                and8(fetch8());
+                return 8;
+            case 0xE7:  // RST $20
+                call(0x20);
+                return 16;
+            case 0xE8:  // ADD SP,n
+                regSP = addSP(fetch8());
+                return 16;
+            case 0xE9:  // JP HL
+                regPC = getHL();
+                return 4;
+            case 0xEA:  // LD (nn),A
+                write8(fetch16(), regA);
+                return 16;
+            case 0xEE:  // XOR n
+                xor8(fetch8());
+                return 8;
+            case 0xEF:  // RST $28
+                call(0x28);
+                return 16;
+            case 0xF0:  // LDH A,(n)
+                regA = read8(0xFF00 | fetch8());
+                return 12;
+            case 0xF1:  // POP AF
+                setAF(popStack());
+                return 12;
+            case 0xF2:  // LD A,(C)
+                regA = read8(0xFF00 | regC);
+                return 8;
+            case 0xF3:  // DI
+                interruptsEnabled = false;
+                return 4;
+            case 0xF5:  // PUSH AF
+                pushStack((char) getAF());
+                return 16;
+            case 0xF6:  // OR n
+                or8(fetch8());
+                return 8;
+            case 0xF7:  // RST $30
+                call(0x30);
+                return 16;
+            case 0xF8:  // LDHL SP,n
+                setHL(addSP(fetch8()));
+                return 12;
+            case 0xF9:  // LD SP,HL
+                regSP = getHL();
+                return 8;
+            case 0xFA:  // LD A,(nn)
+                regA = read8(fetch16());
+                return 16;
+            case 0xFB:  // EI
+                interruptsEnabled = true;
+                return 4;
+            case 0xFE:  // CP n
+                cp8(fetch8());
+                return 8;
+            case 0xFF:  // RST $38
+                call(0x38);
+                return 16;
+            default:
+                throw new IllegalStateException(String.format("Invalid opcode $%02X at $%04X", opcode, regPC));
+        }
+    }
+
+    private int executeCB(int opcode) {
+        switch (opcode) {
+            case 0x00:  // RLC B
+                regB = rlc(regB, true);
+                return 8;
+            case 0x01:  // RLC C
+                regC = rlc(regC, true);
+                return 8;
+            case 0x02:  // RLC D
+                regD = rlc(regD, true);
+                return 8;
+            case 0x03:  // RLC E
+                regE = rlc(regE, true);
+                return 8;
+            case 0x04:  // RLC H
+                regH = rlc(regH, true);
+                return 8;
+            case 0x05:  // RLC L
+                regL = rlc(regL, true);
+                return 8;
+            case 0x06: {  // RLC (HL)
+                int address = getHL();
+                write8(address, rlc(read8(address), true));
+                return 16;
+            }
+            case 0x07:  // RLC A
+                regA = rlc(regA, true);
+                return 8;
+            case 0x08:  // RRC B
+                regB = rrc(regB, true);
+                return 8;
+            case 0x09:  // RRC C
+                regC = rrc(regC, true);
+                return 8;
+            case 0x0A:  // RRC D
+                regD = rrc(regD, true);
+                return 8;
+            case 0x0B:  // RRC E
+                regE = rrc(regE, true);
+                return 8;
+            case 0x0C:  // RRC H
+                regH = rrc(regH, true);
+                return 8;
+            case 0x0D:  // RRC L
+                regL = rrc(regL, true);
+                return 8;
+            case 0x0E: {  // RRC (HL)
+                int address = getHL();
+                write8(address, rrc(read8(address), true));
+                return 16;
+            }
+            case 0x0F:  // RRC A
+                regA = rrc(regA, true);
+                return 8;
+            case 0x10:  // RL B
+                regB = rl(regB, true);
+                return 8;
+            case 0x11:  // RL C
+                regC = rl(regC, true);
+                return 8;
+            case 0x12:  // RL D
+                regD = rl(regD, true);
+                return 8;
+            case 0x13:  // RL E
+                regE = rl(regE, true);
+                return 8;
+            case 0x14:  // RL H
+                regH = rl(regH, true);
+                return 8;
+            case 0x15:  // RL L
+                regL = rl(regL, true);
+                return 8;
+            case 0x16: {  // RL (HL)
+                int address = getHL();
+                write8(address, rl(read8(address), true));
+                return 16;
+            }
+            case 0x17:  // RL A
+                regA = rl(regA, true);
+                return 8;
+            case 0x18:  // RR B
+                regB = rr(regB, true);
+                return 8;
+            case 0x19:  // RR C
+                regC = rr(regC, true);
+                return 8;
+            case 0x1A:  // RR D
+                regD = rr(regD, true);
+                return 8;
+            case 0x1B:  // RR E
+                regE = rr(regE, true);
+                return 8;
+            case 0x1C:  // RR H
+                regH = rr(regH, true);
+                return 8;
+            case 0x1D:  // RR L
+                regL = rr(regL, true);
+                return 8;
+            case 0x1E: {  // RR (HL)
+                int address = getHL();
+                write8(address, rr(read8(address), true));
+                return 16;
+            }
+            case 0x1F:  // RR A
+                regA = rr(regA, true);
+                return 8;
+            case 0x20:  // SLA B
+                regB = sla(regB);
+                return 8;
+            case 0x21:  // SLA C
+                regC = sla(regC);
+                return 8;
+            case 0x22:  // SLA D
+                regD = sla(regD);
+                return 8;
+            case 0x23:  // SLA E
+                regE = sla(regE);
+                return 8;
+            case 0x24:  // SLA H
+                regH = sla(regH);
+                return 8;
+            case 0x25:  // SLA L
+                regL = sla(regL);
+                return 8;
+            case 0x26: {  // SLA (HL)
+                int address = getHL();
+                write8(address, sla(read8(address)));
+                return 16;
+            }
+            case 0x27:  // SLA A
+                regA = sla(regA);
+                return 8;
+            case 0x28:  // SRA B
+                regB = sra(regB);
+                return 8;
+            case 0x29:  // SRA C
+                regC = sra(regC);
+                return 8;
+            case 0x2A:  // SRA D
+                regD = sra(regD);
+                return 8;
+            case 0x2B:  // SRA E
+                regE = sra(regE);
+                return 8;
+            case 0x2C:  // SRA H
+                regH = sra(regH);
+                return 8;
+            case 0x2D:  // SRA L
+                regL = sra(regL);
+                return 8;
+            case 0x2E: {  // SRA (HL)
+                int address = getHL();
+                write8(address, sra(read8(address)));
+                return 16;
+            }
+            case 0x2F:  // SRA A
+                regA = sra(regA);
+                return 8;
+            case 0x30:  // SWAP B
+                regB = swap(regB);
+                return 8;
+            case 0x31:  // SWAP C
+                regC = swap(regC);
+                return 8;
+            case 0x32:  // SWAP D
+                regD = swap(regD);
+                return 8;
+            case 0x33:  // SWAP E
+                regE = swap(regE);
+                return 8;
+            case 0x34:  // SWAP H
+                regH = swap(regH);
+                return 8;
+            case 0x35:  // SWAP L
+                regL = swap(regL);
+                return 8;
+            case 0x36: {  // SWAP (HL)
+                int address = getHL();
+                write8(address, swap(read8(address)));
+                return 16;
+            }
+            case 0x37:  // SWAP A
+                regA = swap(regA);
+                return 8;
+            case 0x38:  // SRL B
+                regB = srl(regB);
+                return 8;
+            case 0x39:  // SRL C
+                regC = srl(regC);
+                return 8;
+            case 0x3A:  // SRL D
+                regD = srl(regD);
+                return 8;
+            case 0x3B:  // SRL E
+                regE = srl(regE);
+                return 8;
+            case 0x3C:  // SRL H
+                regH = srl(regH);
+                return 8;
+            case 0x3D:  // SRL L
+                regL = srl(regL);
+                return 8;
+            case 0x3E: {  // SRL (HL)
+                int address = getHL();
+                write8(address, srl(read8(address)));
+                return 16;
+            }
+            case 0x3F:  // SRL A
+                regA = srl(regA);
+                return 8;
+            case 0x40:  // BIT 0,B
+                bit(regB, 0);
+                return 8;
+            case 0x41:  // BIT 0,C
+                bit(regC, 0);
+                return 8;
+            case 0x42:  // BIT 0,D
+                bit(regD, 0);
+                return 8;
+            case 0x43:  // BIT 0,E
+                bit(regE, 0);
+                return 8;
+            case 0x44:  // BIT 0,H
+                bit(regH, 0);
+                return 8;
+            case 0x45:  // BIT 0,L
+                bit(regL, 0);
+                return 8;
+            case 0x46:  // BIT 0,(HL)
+                bit(read8(getHL()), 0);
+                return 12;
+            case 0x47:  // BIT 0,A
+                bit(regA, 0);
+                return 8;
+            case 0x48:  // BIT 1,B
+                bit(regB, 1);
+                return 8;
+            case 0x49:  // BIT 1,C
+                bit(regC, 1);
+                return 8;
+            case 0x4A:  // BIT 1,D
+                bit(regD, 1);
+                return 8;
+            case 0x4B:  // BIT 1,E
+                bit(regE, 1);
+                return 8;
+            case 0x4C:  // BIT 1,H
+                bit(regH, 1);
+                return 8;
+            case 0x4D:  // BIT 1,L
+                bit(regL, 1);
+                return 8;
+            case 0x4E:  // BIT 1,(HL)
+                bit(read8(getHL()), 1);
+                return 12;
+            case 0x4F:  // BIT 1,A
+                bit(regA, 1);
+                return 8;
+            case 0x50:  // BIT 2,B
+                bit(regB, 2);
+                return 8;
+            case 0x51:  // BIT 2,C
+                bit(regC, 2);
+                return 8;
+            case 0x52:  // BIT 2,D
+                bit(regD, 2);
+                return 8;
+            case 0x53:  // BIT 2,E
+                bit(regE, 2);
+                return 8;
+            case 0x54:  // BIT 2,H
+                bit(regH, 2);
+                return 8;
+            case 0x55:  // BIT 2,L
+                bit(regL, 2);
+                return 8;
+            case 0x56:  // BIT 2,(HL)
+                bit(read8(getHL()), 2);
+                return 12;
+            case 0x57:  // BIT 2,A
+                bit(regA, 2);
+                return 8;
+            case 0x58:  // BIT 3,B
+                bit(regB, 3);
+                return 8;
+            case 0x59:  // BIT 3,C
+                bit(regC, 3);
+                return 8;
+            case 0x5A:  // BIT 3,D
+                bit(regD, 3);
+                return 8;
+            case 0x5B:  // BIT 3,E
+                bit(regE, 3);
+                return 8;
+            case 0x5C:  // BIT 3,H
+                bit(regH, 3);
+                return 8;
+            case 0x5D:  // BIT 3,L
+                bit(regL, 3);
+                return 8;
+            case 0x5E:  // BIT 3,(HL)
+                bit(read8(getHL()), 3);
+                return 12;
+            case 0x5F:  // BIT 3,A
+                bit(regA, 3);
+                return 8;
+            case 0x60:  // BIT 4,B
+                bit(regB, 4);
+                return 8;
+            case 0x61:  // BIT 4,C
+                bit(regC, 4);
+                return 8;
+            case 0x62:  // BIT 4,D
+                bit(regD, 4);
+                return 8;
+            case 0x63:  // BIT 4,E
+                bit(regE, 4);
+                return 8;
+            case 0x64:  // BIT 4,H
+                bit(regH, 4);
+                return 8;
+            case 0x65:  // BIT 4,L
+                bit(regL, 4);
+                return 8;
+            case 0x66:  // BIT 4,(HL)
+                bit(read8(getHL()), 4);
+                return 12;
+            case 0x67:  // BIT 4,A
+                bit(regA, 4);
+                return 8;
+            case 0x68:  // BIT 5,B
+                bit(regB, 5);
+                return 8;
+            case 0x69:  // BIT 5,C
+                bit(regC, 5);
+                return 8;
+            case 0x6A:  // BIT 5,D
+                bit(regD, 5);
+                return 8;
+            case 0x6B:  // BIT 5,E
+                bit(regE, 5);
+                return 8;
+            case 0x6C:  // BIT 5,H
+                bit(regH, 5);
+                return 8;
+            case 0x6D:  // BIT 5,L
+                bit(regL, 5);
+                return 8;
+            case 0x6E:  // BIT 5,(HL)
+                bit(read8(getHL()), 5);
+                return 12;
+            case 0x6F:  // BIT 5,A
+                bit(regA, 5);
+                return 8;
+            case 0x70:  // BIT 6,B
+                bit(regB, 6);
+                return 8;
+            case 0x71:  // BIT 6,C
+                bit(regC, 6);
+                return 8;
+            case 0x72:  // BIT 6,D
+                bit(regD, 6);
+                return 8;
+            case 0x73:  // BIT 6,E
+                bit(regE, 6);
+                return 8;
+            case 0x74:  // BIT 6,H
+                bit(regH, 6);
+                return 8;
+            case 0x75:  // BIT 6,L
+                bit(regL, 6);
+                return 8;
+            case 0x76:  // BIT 6,(HL)
+                bit(read8(getHL()), 6);
+                return 12;
+            case 0x77:  // BIT 6,A
+                bit(regA, 6);
+                return 8;
+            case 0x78:  // BIT 7,B
+                bit(regB, 7);
+                return 8;
+            case 0x79:  // BIT 7,C
+                bit(regC, 7);
+                return 8;
+            case 0x7A:  // BIT 7,D
+                bit(regD, 7);
+                return 8;
+            case 0x7B:  // BIT 7,E
+                bit(regE, 7);
+                return 8;
+            case 0x7C:  // BIT 7,H
+                bit(regH, 7);
+                return 8;
+            case 0x7D:  // BIT 7,L
+                bit(regL, 7);
+                return 8;
+            case 0x7E:  // BIT 7,(HL)
+                bit(read8(getHL()), 7);
+                return 12;
+            case 0x7F:  // BIT 7,A
+                bit(regA, 7);
+                return 8;
+            case 0x80:  // RES 0,B
+                regB &= ~0x01;
+                return 8;
+            case 0x81:  // RES 0,C
+                regC &= ~0x01;
+                return 8;
+            case 0x82:  // RES 0,D
+                regD &= ~0x01;
+                return 8;
+            case 0x83:  // RES 0,E
+                regE &= ~0x01;
+                return 8;
+            case 0x84:  // RES 0,H
+                regH &= ~0x01;
+                return 8;
+            case 0x85:  // RES 0,L
+                regL &= ~0x01;
+                return 8;
+            case 0x86: {  // RES 0,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x01);
+                return 16;
+            }
+            case 0x87:  // RES 0,A
+                regA &= ~0x01;
+                return 8;
+            case 0x88:  // RES 1,B
+                regB &= ~0x02;
+                return 8;
+            case 0x89:  // RES 1,C
+                regC &= ~0x02;
+                return 8;
+            case 0x8A:  // RES 1,D
+                regD &= ~0x02;
+                return 8;
+            case 0x8B:  // RES 1,E
+                regE &= ~0x02;
+                return 8;
+            case 0x8C:  // RES 1,H
+                regH &= ~0x02;
+                return 8;
+            case 0x8D:  // RES 1,L
+                regL &= ~0x02;
+                return 8;
+            case 0x8E: {  // RES 1,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x02);
+                return 16;
+            }
+            case 0x8F:  // RES 1,A
+                regA &= ~0x02;
+                return 8;
+            case 0x90:  // RES 2,B
+                regB &= ~0x04;
+                return 8;
+            case 0x91:  // RES 2,C
+                regC &= ~0x04;
+                return 8;
+            case 0x92:  // RES 2,D
+                regD &= ~0x04;
+                return 8;
+            case 0x93:  // RES 2,E
+                regE &= ~0x04;
+                return 8;
+            case 0x94:  // RES 2,H
+                regH &= ~0x04;
+                return 8;
+            case 0x95:  // RES 2,L
+                regL &= ~0x04;
+                return 8;
+            case 0x96: {  // RES 2,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x04);
+                return 16;
+            }
+            case 0x97:  // RES 2,A
+                regA &= ~0x04;
+                return 8;
+            case 0x98:  // RES 3,B
+                regB &= ~0x08;
+                return 8;
+            case 0x99:  // RES 3,C
+                regC &= ~0x08;
+                return 8;
+            case 0x9A:  // RES 3,D
+                regD &= ~0x08;
+                return 8;
+            case 0x9B:  // RES 3,E
+                regE &= ~0x08;
+                return 8;
+            case 0x9C:  // RES 3,H
+                regH &= ~0x08;
+                return 8;
+            case 0x9D:  // RES 3,L
+                regL &= ~0x08;
+                return 8;
+            case 0x9E: {  // RES 3,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x08);
+                return 16;
+            }
+            case 0x9F:  // RES 3,A
+                regA &= ~0x08;
+                return 8;
+            case 0xA0:  // RES 4,B
+                regB &= ~0x10;
+                return 8;
+            case 0xA1:  // RES 4,C
+                regC &= ~0x10;
+                return 8;
+            case 0xA2:  // RES 4,D
+                regD &= ~0x10;
+                return 8;
+            case 0xA3:  // RES 4,E
+                regE &= ~0x10;
+                return 8;
+            case 0xA4:  // RES 4,H
+                regH &= ~0x10;
+                return 8;
+            case 0xA5:  // RES 4,L
+                regL &= ~0x10;
+                return 8;
+            case 0xA6: {  // RES 4,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x10);
+                return 16;
+            }
+            case 0xA7:  // RES 4,A
+                regA &= ~0x10;
+                return 8;
+            case 0xA8:  // RES 5,B
+                regB &= ~0x20;
+                return 8;
+            case 0xA9:  // RES 5,C
+                regC &= ~0x20;
+                return 8;
+            case 0xAA:  // RES 5,D
+                regD &= ~0x20;
+                return 8;
+            case 0xAB:  // RES 5,E
+                regE &= ~0x20;
+                return 8;
+            case 0xAC:  // RES 5,H
+                regH &= ~0x20;
+                return 8;
+            case 0xAD:  // RES 5,L
+                regL &= ~0x20;
+                return 8;
+            case 0xAE: {  // RES 5,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x20);
+                return 16;
+            }
+            case 0xAF:  // RES 5,A
+                regA &= ~0x20;
+                return 8;
+            case 0xB0:  // RES 6,B
+                regB &= ~0x40;
+                return 8;
+            case 0xB1:  // RES 6,C
+                regC &= ~0x40;
+                return 8;
+            case 0xB2:  // RES 6,D
+                regD &= ~0x40;
+                return 8;
+            case 0xB3:  // RES 6,E
+                regE &= ~0x40;
+                return 8;
+            case 0xB4:  // RES 6,H
+                regH &= ~0x40;
+                return 8;
+            case 0xB5:  // RES 6,L
+                regL &= ~0x40;
+                return 8;
+            case 0xB6: {  // RES 6,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x40);
+                return 16;
+            }
+            case 0xB7:  // RES 6,A
+                regA &= ~0x40;
+                return 8;
+            case 0xB8:  // RES 7,B
+                regB &= ~0x80;
+                return 8;
+            case 0xB9:  // RES 7,C
+                regC &= ~0x80;
+                return 8;
+            case 0xBA:  // RES 7,D
+                regD &= ~0x80;
+                return 8;
+            case 0xBB:  // RES 7,E
+                regE &= ~0x80;
+                return 8;
+            case 0xBC:  // RES 7,H
+                regH &= ~0x80;
+                return 8;
+            case 0xBD:  // RES 7,L
+                regL &= ~0x80;
+                return 8;
+            case 0xBE: {  // RES 7,(HL)
+                int address = getHL();
+                write8(address, read8(address) & ~0x80);
+                return 16;
+            }
+            case 0xBF:  // RES 7,A
+                regA &= ~0x80;
+                return 8;
+            case 0xC0:  // SET 0,B
+                regB |= 0x01;
+                return 8;
+            case 0xC1:  // SET 0,C
+                regC |= 0x01;
+                return 8;
+            case 0xC2:  // SET 0,D
+                regD |= 0x01;
+                return 8;
+            case 0xC3:  // SET 0,E
+                regE |= 0x01;
+                return 8;
+            case 0xC4:  // SET 0,H
+                regH |= 0x01;
+                return 8;
+            case 0xC5:  // SET 0,L
+                regL |= 0x01;
+                return 8;
+            case 0xC6: {  // SET 0,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x01);
+                return 16;
+            }
+            case 0xC7:  // SET 0,A
+                regA |= 0x01;
+                return 8;
+            case 0xC8:  // SET 1,B
+                regB |= 0x02;
+                return 8;
+            case 0xC9:  // SET 1,C
+                regC |= 0x02;
+                return 8;
+            case 0xCA:  // SET 1,D
+                regD |= 0x02;
+                return 8;
+            case 0xCB:  // SET 1,E
+                regE |= 0x02;
+                return 8;
+            case 0xCC:  // SET 1,H
+                regH |= 0x02;
+                return 8;
+            case 0xCD:  // SET 1,L
+                regL |= 0x02;
+                return 8;
+            case 0xCE: {  // SET 1,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x02);
+                return 16;
+            }
+            case 0xCF:  // SET 1,A
+                regA |= 0x02;
+                return 8;
+            case 0xD0:  // SET 2,B
+                regB |= 0x04;
+                return 8;
+            case 0xD1:  // SET 2,C
+                regC |= 0x04;
+                return 8;
+            case 0xD2:  // SET 2,D
+                regD |= 0x04;
+                return 8;
+            case 0xD3:  // SET 2,E
+                regE |= 0x04;
+                return 8;
+            case 0xD4:  // SET 2,H
+                regH |= 0x04;
+                return 8;
+            case 0xD5:  // SET 2,L
+                regL |= 0x04;
+                return 8;
+            case 0xD6: {  // SET 2,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x04);
+                return 16;
+            }
+            case 0xD7:  // SET 2,A
+                regA |= 0x04;
+                return 8;
+            case 0xD8:  // SET 3,B
+                regB |= 0x08;
+                return 8;
+            case 0xD9:  // SET 3,C
+                regC |= 0x08;
+                return 8;
+            case 0xDA:  // SET 3,D
+                regD |= 0x08;
+                return 8;
+            case 0xDB:  // SET 3,E
+                regE |= 0x08;
+                return 8;
+            case 0xDC:  // SET 3,H
+                regH |= 0x08;
+                return 8;
+            case 0xDD:  // SET 3,L
+                regL |= 0x08;
+                return 8;
+            case 0xDE: {  // SET 3,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x08);
+                return 16;
+            }
+            case 0xDF:  // SET 3,A
+                regA |= 0x08;
+                return 8;
+            case 0xE0:  // SET 4,B
+                regB |= 0x10;
+                return 8;
+            case 0xE1:  // SET 4,C
+                regC |= 0x10;
+                return 8;
+            case 0xE2:  // SET 4,D
+                regD |= 0x10;
+                return 8;
+            case 0xE3:  // SET 4,E
+                regE |= 0x10;
+                return 8;
+            case 0xE4:  // SET 4,H
+                regH |= 0x10;
+                return 8;
+            case 0xE5:  // SET 4,L
+                regL |= 0x10;
+                return 8;
+            case 0xE6: {  // SET 4,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x10);
+                return 16;
+            }
+            case 0xE7:  // SET 4,A
+                regA |= 0x10;
+                return 8;
+            case 0xE8:  // SET 5,B
+                regB |= 0x20;
+                return 8;
+            case 0xE9:  // SET 5,C
+                regC |= 0x20;
+                return 8;
+            case 0xEA:  // SET 5,D
+                regD |= 0x20;
+                return 8;
+            case 0xEB:  // SET 5,E
+                regE |= 0x20;
+                return 8;
+            case 0xEC:  // SET 5,H
+                regH |= 0x20;
+                return 8;
+            case 0xED:  // SET 5,L
+                regL |= 0x20;
+                return 8;
+            case 0xEE: {  // SET 5,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x20);
+                return 16;
+            }
+            case 0xEF:  // SET 5,A
+                regA |= 0x20;
+                return 8;
+            case 0xF0:  // SET 6,B
+                regB |= 0x40;
+                return 8;
+            case 0xF1:  // SET 6,C
+                regC |= 0x40;
+                return 8;
+            case 0xF2:  // SET 6,D
+                regD |= 0x40;
+                return 8;
+            case 0xF3:  // SET 6,E
+                regE |= 0x40;
+                return 8;
+            case 0xF4:  // SET 6,H
+                regH |= 0x40;
+                return 8;
+            case 0xF5:  // SET 6,L
+                regL |= 0x40;
+                return 8;
+            case 0xF6: {  // SET 6,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x40);
+                return 16;
+            }
+            case 0xF7:  // SET 6,A
+                regA |= 0x40;
+                return 8;
+            case 0xF8:  // SET 7,B
+                regB |= 0x80;
+                return 8;
+            case 0xF9:  // SET 7,C
+                regC |= 0x80;
+                return 8;
+            case 0xFA:  // SET 7,D
+                regD |= 0x80;
+                return 8;
+            case 0xFB:  // SET 7,E
+                regE |= 0x80;
+                return 8;
+            case 0xFC:  // SET 7,H
+                regH |= 0x80;
+                return 8;
+            case 0xFD:  // SET 7,L
+                regL |= 0x80;
+                return 8;
+            case 0xFE: {  // SET 7,(HL)
+                int address = getHL();
+                write8(address, read8(address) | 0x80);
+                return 16;
+            }
+            case 0xFF:  // SET 7,A
+                regA |= 0x80;
+                return 8;
+            default:
+                throw new IllegalStateException(String.format("Invalid opcode $CB%02X at $%04X", opcode, regPC));
+        }
+    }
+
+    private char read8(int address) {
+        return gb.mmu.read8((char) address);
+    }
+
+    private void write8(int address, int value) {
+        gb.mmu.write8((char) address, (char) value);
+    }
+
+    private int fetch8() {
+        if (operandCached) {
+            // Already decoded by the block cache
+            operandCached = false;
+            return cachedOperand;
+        }
+
+        // Next byte is operand
+        int value = gb.mmu.read8((char) regPC);
+        regPC = (regPC + 1) & 0xFFFF;
+        return value;
+    }
+
+    private int fetch16() {
+        if (operandCached) {
+            operandCached = false;
+            return cachedOperand;
+        }
+
+        // Next two bytes make operand
+        int value = gb.mmu.read16((char) regPC);
+        regPC = (regPC + 2) & 0xFFFF;
+        return value;
+    }
+
+    private int getAF() {
+        return (regA << 8) | materializeFlags();
+    }
+
+    private void setAF(int value) {
+        regA = value >>> 8;
+        regF = value & 0xF0;
+        flagOp = LAZY_NONE;
+    }
+
+    private int getBC() {
+        return (regB << 8) | regC;
+    }
+
+    private void setBC(int value) {
+        regB = value >>> 8;
+        regC = value & 0xFF;
+    }
+
+    private int getDE() {
+        return (regD << 8) | regE;
+    }
+
+    private void setDE(int value) {
+        regD = value >>> 8;
+        regE = value & 0xFF;
+    }
+
+    private int getHL() {
+        return (regH << 8) | regL;
+    }
+
+    private void setHL(int value) {
+        regH = value >>> 8;
+        regL = value & 0xFF;
+    }
+
+    private void deferFlags(int op, int result, int operands) {
+        flagOp = op;
+        flagResult = result;
+        flagOperands = operands;
+    }
+
+    private int materializeFlags() {
+        switch (flagOp) {
+            case LAZY_NONE:
+                return regF;
+            case LAZY_ADD:
+                regF = ((flagResult & 0xFF) == 0 ? FLAG_ZERO : 0) |
+                       (((flagOperands ^ flagResult) & 0x10) != 0 ? FLAG_HALF_CARRY : 0) |
+                       (flagResult > 0xFF ? FLAG_CARRY : 0);
+                break;
+            case LAZY_SUB:
+                regF = ((flagResult & 0xFF) == 0 ? FLAG_ZERO : 0) | FLAG_SUBTRACTION |
+                       (((flagOperands ^ flagResult) & 0x10) != 0 ? FLAG_HALF_CARRY : 0) |
+                       (flagResult < 0 ? FLAG_CARRY : 0);
+                break;
+            case LAZY_AND:
+                regF = (flagResult == 0 ? FLAG_ZERO : 0) | FLAG_HALF_CARRY;
+                break;
+            case LAZY_OR:
+                regF = flagResult == 0 ? FLAG_ZERO : 0;
+                break;
+            case LAZY_INC:
+                regF = ((flagResult & 0xFF) == 0 ? FLAG_ZERO : 0) |
+                       ((flagResult & 0xF) == 0 ? FLAG_HALF_CARRY : 0) | flagOperands;
+                break;
+            case LAZY_DEC:
+                regF = ((flagResult & 0xFF) == 0 ? FLAG_ZERO : 0) | FLAG_SUBTRACTION |
+                       ((flagResult & 0xF) == 0xF ? FLAG_HALF_CARRY : 0) | flagOperands;
+                break;
+        }
+        flagOp = LAZY_NONE;
+        return regF;
+    }
+
+    private boolean zeroFlagSet() {
+        // Every deferred operation sets Z from the low byte of its result
+        if (flagOp != LAZY_NONE)
+            return (flagResult & 0xFF) == 0;
+        return (regF & FLAG_ZERO) != 0;
+    }
+
+    private boolean carryFlagSet() {
+        switch (flagOp) {
+            case LAZY_NONE:
+                return (regF & FLAG_CARRY) != 0;
+            case LAZY_ADD:
+                return flagResult > 0xFF;
+            case LAZY_SUB:
+                return flagResult < 0;
+            case LAZY_AND:
+            case LAZY_OR:
+                return false;
+            default:
+                return flagOperands != 0;
+        }
+    }
+
+    private void jumpRelative(int offset) {
+        // Operand is signed
+        regPC = (regPC + (byte) offset) & 0xFFFF;
+    }
+
+    // Extra cycles for a taken JR (nonzero when it closes an idle loop which can be skipped)
+    private int idleLoopCycles(int offset) {
+        byte displacement = (byte) offset;
+        if (!idleLoopSkipping || displacement >= 0 || displacement < -MAX_IDLE_LOOP_BYTES)
+            return 0;
+        return skipIdleLoop((regPC - displacement - 2) & 0xFFFF);
+    }
+
+    private int skipIdleLoop(int branchAddress) {
+        Scheduler scheduler = gb.scheduler;
+        long now = scheduler.getCycles();
+        long dispatches = scheduler.getDispatchCount();
+        long registers = ((long) regA << 48) | ((long) regB << 40) | ((long) regC << 32) |
+                         ((long) regD << 24) | (regE << 16) | (regH << 8) | regL;
+        long flags = ((long) flagResult << 32) | (flagOp << 24) | ((flagOperands & 0xFFFF) << 8) | regF;
+
+        if (regPC == idleLoopHead && regSP == idleLoopSP && dispatches == idleLoopDispatches &&
+                registers == idleLoopRegisters && flags == idleLoopFlags) {
+            // Same state as the last time around the loop: skip whole iterations up to the next event
+            long iterationCycles = now - idleLoopBranchCycles;
+            if (iterationCycles > 0 && isIdleLoop(regPC, branchAddress)) {
+                long loopStart = now + 12;
+                long iterations = (scheduler.getNextEvent() - 1 - loopStart) / iterationCycles;
+                if (iterations > 0) {
+                    int skipped = (int) (iterations * iterationCycles);
+                    idleCyclesSkipped += skipped;
+                    idleLoopHead = -1;
+                    return skipped;
+                }
+            }
+        }
+
+        idleLoopHead = regPC;
+        idleLoopSP = regSP;
+        idleLoopRegisters = registers;
+        idleLoopFlags = flags;
+        idleLoopBranchCycles = now;
+        idleLoopDispatches = dispatches;
+        return 0;
+    }
+
+    /* Whether the code between head and branchAddress only changes A and F, and only reads memory
+       which stays the same until the next event. Conditional jumps may only target the loop itself,
+       so that every path back to the head has been checked */
+    private boolean isIdleLoop(int head, int branchAddress) {
+        int address = head;
+        while (address != branchAddress) {
+            if (((address - head) & 0xFFFF) >= MAX_IDLE_LOOP_BYTES)
+                return false;
+
+            int opcode = gb.mmu.read8((char) address);
+            int length = 1;
+            int readAddress = -1;
+            int jumpTarget = -1;
+            switch (opcode) {
+                case 0x00:  // NOP
+                case 0x07: case 0x0F: case 0x17: case 0x1F:  // RLCA, RRCA, RLA, RRA
+                case 0x2F: case 0x37: case 0x3F:  // CPL, SCF, CCF
+                    break;
+                case 0x0A:  // LD A,(BC)
+                    readAddress = getBC();
+                    break;
+                case 0x1A:  // LD A,(DE)
+                    readAddress = getDE();
+                    break;
+                case 0xF2:  // LD A,($FF00+C)
+                    readAddress = 0xFF00 | regC;
+                    break;
+                case 0xF0:  // LDH A,(n)
+                    readAddress = 0xFF00 | gb.mmu.read8((char) (address + 1));
+                    length = 2;
+                    break;
+                case 0xFA:  // LD A,(nn)
+                    readAddress = gb.mmu.read16((char) (address + 1));
+                    length = 3;
+                    break;
+                case 0xC6: case 0xCE: case 0xD6: case 0xDE:  // ALU A,n
+                case 0xE6: case 0xEE: case 0xF6: case 0xFE:
+                    length = 2;
+                    break;
+                case 0x20: case 0x28: case 0x30: case 0x38:  // JR cc,n
+                    jumpTarget = (address + 2 + (byte) gb.mmu.read8((char) (address + 1))) & 0xFFFF;
+                    length = 2;
+                    break;
+                case 0xC2: case 0xCA: case 0xD2: case 0xDA:  // JP cc,nn
+                    jumpTarget = gb.mmu.read16((char) (address + 1));
+                    length = 3;
+                    break;
+                case 0xCB: {
+                    int cbOpcode = gb.mmu.read8((char) (address + 1));
+                    if ((cbOpcode & 0xC0) == 0x40) {
+                        // BIT b,r / BIT b,(HL)
+                        if ((cbOpcode & 7) == 6)
+                            readAddress = getHL();
+                    } else if ((cbOpcode & 7) != 7) {
+                        // Rotates, shifts, RES and SET are only allowed on A
+                        return false;
+                    }
+                    length = 2;
+                    break;
+                }
+                default:
+                    // LD A,r and ALU A,r
+                    if (opcode < 0x78 || opcode > 0xBF)
+                        return false;
+                    if ((opcode & 7) == 6)
+                        readAddress = getHL();
+            }
+
+            if (readAddress >= 0 && !isIdleLoopReadable(readAddress))
+                return false;
+            if (jumpTarget >= 0 && ((jumpTarget - head) & 0xFFFF) > ((branchAddress - head) & 0xFFFF))
+                return false;
+            address = (address + length) & 0xFFFF;
+        }
+        return true;
+    }
+
+    private static boolean isIdleLoopReadable(int address) {
+        /* Memory which only the CPU or a scheduled event can change. Excludes cartridge RAM
+           (which may be a real-time clock), the joypad, serial, timer and sound registers */
+        return address < 0xA000 ||
+               (address >= 0xC000 && address < 0xFF00) ||
+               address == 0xFF0F ||
+               (address >= 0xFF40 && address <= 0xFF4B) ||
+               address >= 0xFF80;
+    }
+
+    private void call(int address) {
+        pushStack((char) regPC);
+        regPC = address;
+    }
+
+    private void add8(int value, int carry) {
+        int x = regA;
+        int result = x + value + carry;
+        if (lazyFlags) {
+            deferFlags(LAZY_ADD, result, x ^ value);
+        } else {
+            regF = ((result & 0xFF) == 0 ? FLAG_ZERO : 0) |
+                   ((x & 0xF) + (value & 0xF) + carry > 0xF ? FLAG_HALF_CARRY : 0) |
+                   (result > 0xFF ? FLAG_CARRY : 0);
+        }
+        regA = result & 0xFF;
+    }
+
+    private void sub8(int value, int carry) {
+        int x = regA;
+        int result = x - value - carry;
+        if (lazyFlags) {
+            deferFlags(LAZY_SUB, result, x ^ value);
+        } else {
+            regF = ((result & 0xFF) == 0 ? FLAG_ZERO : 0) | FLAG_SUBTRACTION |
+                   ((x & 0xF) < (value & 0xF) + carry ? FLAG_HALF_CARRY : 0) |
+                   (result < 0 ? FLAG_CARRY : 0);
+        }
+        regA = result & 0xFF;
+    }
+
+    private void cp8(int value) {
+        int x = regA;
+        if (lazyFlags) {
+            deferFlags(LAZY_SUB, x - value, x ^ value);
+        } else {
+            regF = (x == value ? FLAG_ZERO : 0) | FLAG_SUBTRACTION |
+                   ((x & 0xF) < (value & 0xF) ? FLAG_HALF_CARRY : 0) |
+                   (x < value ? FLAG_CARRY : 0);
+        }
+    }
+
+    private void and8(int value) {
+        regA &= value;
+        if (lazyFlags)
+            deferFlags(LAZY_AND, regA, 0);
+        else
+            regF = (regA == 0 ? FLAG_ZERO : 0) | FLAG_HALF_CARRY;
+    }
+
+    private void xor8(int value) {
+        regA ^= value;
+        if (lazyFlags)
+            deferFlags(LAZY_OR, regA, 0);
+        else
+            regF = regA == 0 ? FLAG_ZERO : 0;
+    }
+
+    private void or8(int value) {
+        regA |= value;
+        if (lazyFlags)
+            deferFlags(LAZY_OR, regA, 0);
+        else
+            regF = regA == 0 ? FLAG_ZERO : 0;
+    }
+
+    private int inc8(int value) {
+        if (lazyFlags) {
+            // Carry is unaffected
+            deferFlags(LAZY_INC, value + 1, carryFlagSet() ? FLAG_CARRY : 0);
+        } else {
+            regF = (regF & FLAG_CARRY) |
+                   (value == 0xFF ? FLAG_ZERO : 0) |
+                   ((value & 0xF) == 0xF ? FLAG_HALF_CARRY : 0);
+        }
+        return (value + 1) & 0xFF;
+    }
+
+    private int dec8(int value) {
+        if (lazyFlags) {
+            deferFlags(LAZY_DEC, value - 1, carryFlagSet() ? FLAG_CARRY : 0);
+        } else {
+            regF = (regF & FLAG_CARRY) | FLAG_SUBTRACTION |
+                   (value == 1 ? FLAG_ZERO : 0) |
+                   ((value & 0xF) == 0 ? FLAG_HALF_CARRY : 0);
+        }
+        return (value - 1) & 0xFF;
+    }
+
+    private void add16(int value) {
+        int x = getHL();
+        int result = x + value;
+        regF = (materializeFlags() & FLAG_ZERO) |
+               ((x & 0xFFF) + (value & 0xFFF) > 0xFFF ? FLAG_HALF_CARRY : 0) |
+               (result > 0xFFFF ? FLAG_CARRY : 0);
+        setHL(result & 0xFFFF);
+    }
+
+    private int addSP(int offset) {
+        // Add a signed operand to the stack pointer (used by ADD SP,# and LDHL)
+        int x = regSP;
+        int y = (byte) offset;
+        regF = ((x & 0xF) + (y & 0xF) > 0xF ? FLAG_HALF_CARRY : 0) |
+               ((x & 0xFF) + (y & 0xFF) > 0xFF ? FLAG_CARRY : 0);
+        flagOp = LAZY_NONE;
+        return (x + y) & 0xFFFF;
+    }
+
+    private void daa() {
+        int value = regA;
+        int flags = materializeFlags();
+
+        // Apply BCD correction depending on the last operation performed
+        if ((flags & FLAG_SUBTRACTION) != 0) {
+            if ((flags & FLAG_HALF_CARRY) != 0)
+                value = (value - 6) & 0xFF;
+            if ((flags & FLAG_CARRY) != 0)
+                value = (value - 0x60) & 0xFFFF;
+        } else {
+            if ((value & 0xF) > 9 || (flags & FLAG_HALF_CARRY) != 0)
+                value += 6;
+            if (value > 0x9F || (flags & FLAG_CARRY) != 0)
+                value += 0x60;
+        }
+
+        flags &= ~(FLAG_ZERO | FLAG_HALF_CARRY);
+        if ((value & 0xFF) == 0)
+            flags |= FLAG_ZERO;
+        if ((value & 0x100) != 0)
+            flags |= FLAG_CARRY;
+        regA = value & 0xFF;
+        regF = flags;
+    }
+
+    private void cpl() {
+        regA = ~regA & 0xFF;
+        regF = materializeFlags() | FLAG_SUBTRACTION | FLAG_HALF_CARRY;
+    }
+
+    private void scf() {
+        regF = (materializeFlags() & FLAG_ZERO) | FLAG_CARRY;
+    }
+
+    private void ccf() {
+        int flags = materializeFlags();
+        regF = (flags & FLAG_ZERO) | (~flags & FLAG_CARRY);
+    }
+
+    // Rotates and shifts. The zero flag is always cleared by the accumulator-only forms
+    private int rotateResult(int result, boolean carry, boolean updateZero) {
+        regF = (carry ? FLAG_CARRY : 0) | (updateZero && result == 0 ? FLAG_ZERO : 0);
+        flagOp = LAZY_NONE;
+        return result;
+    }
+
+    private int rlc(int value, boolean updateZero) {
+        return rotateResult(((value << 1) | (value >>> 7)) & 0xFF, (value & 0x80) != 0, updateZero);
+    }
+
+    private int rrc(int value, boolean updateZero) {
+        return rotateResult(((value >>> 1) | (value << 7)) & 0xFF, (value & 1) != 0, updateZero);
+    }
+
+    private int rl(int value, boolean updateZero) {
+        int result = ((value << 1) | (carryFlagSet() ? 1 : 0)) & 0xFF;
+        return rotateResult(result, (value & 0x80) != 0, updateZero);
+    }
+
+    private int rr(int value, boolean updateZero) {
+        int result = (value >>> 1) | (carryFlagSet() ? 0x80 : 0);
+        return rotateResult(result, (value & 1) != 0, updateZero);
+    }
+
+    private int sla(int value) {
+        return rotateResult((value << 1) & 0xFF, (value & 0x80) != 0, true);
+    }
+
+    private int sra(int value) {
+        return rotateResult((value >>> 1) | (value & 0x80), (value & 1) != 0, true);
+    }
+
+    private int srl(int value) {
+        return rotateResult(value >>> 1, (value & 1) != 0, true);
+    }
+
+    private int swap(int value) {
+        return rotateResult(((value << 4) | (value >>> 4)) & 0xFF, false, true);
+    }
+
+    private void bit(int value, int bit) {
+        regF = (materializeFlags() & FLAG_CARRY) | FLAG_HALF_CARRY |
+               ((value & (1 << bit)) == 0 ? FLAG_ZERO : 0);
+    }
+
+    /* Register/Cursor views of the register file. The table-driven core operates through these,
+       and they let tests and debuggers inspect the CPU without knowing its internal layout */
+    private int getRegister(int index) {
+        switch (index) {
+            case REG_A: return regA;
+            case REG_B: return regB;
+            case REG_C: return regC;
+            case REG_D: return regD;
+            case REG_E: return regE;
+            case REG_H: return regH;
+            case REG_L: return regL;
+            case REG_SP: return regSP;
+            case REG_PC: return regPC;
+            case REG_AF: return getAF();
+            case REG_BC: return getBC();
+            case REG_DE: return getDE();
+            default: return getHL();
+        }
+    }
+
+    private void setRegister(int index, int value) {
+        switch (index) {
+            case REG_A: regA = value & 0xFF; break;
+            case REG_B: regB = value & 0xFF; break;
+            case REG_C: regC = value & 0xFF; break;
+            case REG_D: regD = value & 0xFF; break;
+            case REG_E: regE = value & 0xFF; break;
+            case REG_H: regH = value & 0xFF; break;
+            case REG_L: regL = value & 0xFF; break;
+            case REG_SP: regSP = value; break;
+            case REG_PC: regPC = value; break;
+            case REG_AF: setAF(value); break;
+            case REG_BC: setBC(value); break;
+            case REG_DE: setDE(value); break;
+            default: setHL(value);
+        }
+    }
+
+    private class RegisterView implements Register {
+        private final int index;
+
+        RegisterView(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public char read() {
+            return (char) getRegister(index);
+        }
+
+        @Override
+        public void write(char value) {
+            setRegister(index, value);
+        }
+
+        @Override
+        public void increment() {
+            write((char) (read() + 1));
+        }
+
+        @Override
+        public void decrement() {
+            write((char) (read() - 1));
+        }
+    }
+
+    private class FlagRegisterView extends FlagRegister {
+        private static final long serialVersionUID = 6904491899599459938L;
+
+        @Override
+        public char read() {
+            return (char) materializeFlags();
+        }
+
+        @Override
+        public void write(char value) {
+            regF = value & 0xF0;
+            flagOp = LAZY_NONE;
+        }
+
+        @Override
+        public void increment() {
+            write((char) (read() + 1));
+        }
+
+        @Override
+        public void decrement() {
+            write((char) (read() - 1));
+        }
+    }
+
     /* Register for CPU flags */
     public static class FlagRegister extends Register8 {
         public enum Flag {
@@ -634,13 +3162,13 @@ public class CPU implements Serializable {
 
         public void updateFlag(Flag flag, boolean set) {
             if (set)
-                value |= flag.getBitmask();
+                write((char) (read() | flag.getBitmask()));
             else
-                value &= ~flag.getBitmask();
+                write((char) (read() & ~flag.getBitmask()));
         }
 
         public boolean isFlagSet(Flag flag) {
-            return (value & flag.getBitmask()) != 0;
+            return (read() & flag.getBitmask()) != 0;
         }
 
         @Override
@@ -1279,19 +3807,7 @@ public class CPU implements Serializable {
     private static class HALT implements InstructionRoot {
         @Override
         public int execute(CPU cpu, Cursor[] operands) {
-            char raisedInterrupts = cpu.gb.mmu.read8((char) 0xFF0F);
-            char enabledInterrupts = cpu.gb.mmu.read8((char) 0xFFFF);
-
-            /* BUG: If interrupt master enable is unset but some interrupts are enabled and raised,
-               halt mode is not entered and PC will not be incremented after fetching the next
-               opcode. E.g.,
-
-               $3E $14  (LD A,$14) will be executed as:
-
-               $3E $3E  (LD A,$3E)
-               $14      (INC D) */
-            cpu.halted = (cpu.interruptsEnabled || (enabledInterrupts & raisedInterrupts & 0x1F) == 0);
-            cpu.haltBugTriggered = !cpu.halted;
+            cpu.halt();
             return 4;
         }
     }
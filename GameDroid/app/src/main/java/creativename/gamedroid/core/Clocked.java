@@ -0,0 +1,15 @@
+package creativename.gamedroid.core;
+
+/* Implementors are hardware components driven by the CPU clock, and are kept in step with the
+   CPU by the Scheduler */
+public interface Clocked {
+    // Returned by cyclesUntilEvent() when the component has nothing scheduled
+    int NO_EVENT = Integer.MAX_VALUE;
+
+    // Tell the component that some number of cycles have passed
+    void advance(int cycles);
+
+    /* Number of cycles until the component next needs to act on its own (e.g., change mode or
+       raise an interrupt), or NO_EVENT */
+    int cyclesUntilEvent();
+}
@@ -1,9 +1,15 @@
 package creativename.gamedroid.core;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /* CPU frequency divider */
-public class Divider implements MemoryMappable, Serializable {
+public class Divider implements MemoryMappable, Clocked, Serializable {
+    // Matches the implicit UID of the original class so older save states still load
+    private static final long serialVersionUID = -6715920838688218816L;
+
+    static final int STATE_SIZE = 2;
+
     private char counter;
 
     // Tell the divider that some number of cycles have passed
@@ -11,6 +17,24 @@ public class Divider implements MemoryMappable, Serializable {
         counter += cycles;
     }
 
+    void saveState(ByteBuffer buffer) {
+        buffer.putChar(counter);
+    }
+
+    void loadState(ByteBuffer buffer) {
+        counter = buffer.getChar();
+    }
+
+    @Override
+    public void advance(int cycles) {
+        notifyCyclesPassed(cycles);
+    }
+
+    @Override
+    public int cyclesUntilEvent() {
+        return NO_EVENT;
+    }
+
     @Override
     public byte read(char address) {
         return (byte) (counter >>> 8);
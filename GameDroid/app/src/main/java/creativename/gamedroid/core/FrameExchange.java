@@ -0,0 +1,39 @@
+package creativename.gamedroid.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Lock-free handoff of frames from the emulation thread to the rendering thread, using three
+   buffers. The producer fills the back buffer and publishes it by swapping it with the middle
+   one; the consumer takes the newest published frame by swapping the middle buffer with its
+   front one. Neither thread ever waits for the other, and frames published faster than they are
+   consumed are simply replaced by newer ones */
+public class FrameExchange {
+    private static final int FRESH = 4;  // Set in middle when it holds a frame not yet consumed
+
+    private final int[][] buffers;
+    private final AtomicInteger middle = new AtomicInteger(1);  // Buffer index, plus FRESH
+    private int back = 0;   // Producer only
+    private int front = 2;  // Consumer only
+
+    public FrameExchange(int frameSize) {
+        buffers = new int[3][frameSize];
+    }
+
+    // Producer: the buffer to fill with the next frame
+    public int[] getBackBuffer() {
+        return buffers[back];
+    }
+
+    // Producer: makes the back buffer's frame the newest one
+    public void publish() {
+        back = middle.getAndSet(back | FRESH) & 3;
+    }
+
+    // Consumer: returns the newest frame published since the last call, or null if there is none
+    public int[] acquire() {
+        if ((middle.get() & FRESH) == 0)
+            return null;
+        front = middle.getAndSet(front) & 3;
+        return buffers[front];
+    }
+}
@@ -0,0 +1,7 @@
+package creativename.gamedroid.core;
+
+/* Implemented by render targets which need to know about frames the LCD skipped drawing (e.g.,
+   to keep pacing emulation while frame skipping) */
+public interface FrameSkipListener {
+    void frameSkipped();
+}
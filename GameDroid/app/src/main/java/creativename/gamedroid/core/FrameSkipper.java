@@ -0,0 +1,51 @@
+package creativename.gamedroid.core;
+
+/* Decides which frames the LCD draws. Skipped frames still go through the LCD's mode changes,
+   interrupts and sprite search, but no pixels are drawn and the render target isn't given the
+   frame (it is told about it instead if it is a FrameSkipListener).
+
+   A fixed interval draws one frame of every interval. The adaptive policy draws every frame
+   unless emulation has fallen behind real time, and then skips up to MAX_ADAPTIVE_SKIP in a row
+   to catch up */
+public class FrameSkipper {
+    public static final int ADAPTIVE = 0;
+    private static final int MAX_ADAPTIVE_SKIP = 3;
+    private static final long FRAME_NS = 16742706;  // 70224 cycles at 4.194304 MHz
+    private static final long MAX_LAG_NS = FRAME_NS * 8;  // Further behind, don't try to catch up
+
+    private final int interval;
+    private long frames;
+    private long deadline;  // When the frame being decided on should be done
+    private int skippedInRow;
+
+    public FrameSkipper(int interval) {
+        if (interval < 0)
+            throw new IllegalArgumentException(String.format("Invalid frame skip interval (%d)", interval));
+        this.interval = interval;
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    // Called as each frame starts: returns whether it should be drawn
+    public boolean drawNextFrame() {
+        // The first frame (before any call) is drawn
+        ++frames;
+        if (interval != ADAPTIVE)
+            return (frames % interval) == 0;
+
+        long now = System.nanoTime();
+        if (frames == 1 || now - deadline > MAX_LAG_NS)
+            deadline = now;  // Just started or resumed, or too far behind to catch up
+        deadline += FRAME_NS;
+
+        if (now > deadline - FRAME_NS && skippedInRow < MAX_ADAPTIVE_SKIP) {
+            // Previous frame finished late
+            ++skippedInRow;
+            return false;
+        }
+        skippedInRow = 0;
+        return true;
+    }
+}
@@ -28,20 +28,33 @@ package creativename.gamedroid.core;
       * Brendan Marko
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 /* Entry point to the emulator core */
 public class GameBoy {
+    /* Save states are a fixed-size header and each component's state (RAM blocks as they are,
+       then registers), in the order written by saveState(ByteBuffer). States saved with Java
+       serialization (before this format existed) are told apart by the stream's magic number */
+    private static final int STATE_MAGIC = 0x47445354;  // "GDST"
+    private static final int STATE_VERSION = 1;
+    private static final int STATE_HEADER_SIZE = 8;
+    public static final int STATE_SIZE = STATE_HEADER_SIZE + 10 + MMU.STATE_SIZE + CPU.STATE_SIZE +
+            LCD.STATE_SIZE + Timer.STATE_SIZE + Divider.STATE_SIZE;
+    private static final int SERIALIZATION_MAGIC = 0xACED0005;
+
     public Cartridge cartridge;
     public MMU mmu;
     public CPU cpu;
@@ -50,16 +63,23 @@ public class GameBoy {
     public boolean stopped;
     public Timer timer;
     public Divider divider;
+    public Scheduler scheduler;
     public RenderTarget renderTarget;
     private AtomicBoolean terminated;
     private Runnable runAtLoopEnd;
+    private ByteBuffer stateBuffer;  // Reused by the stream save/load methods
 
     public GameBoy() {
+        this(CPU.ExecutionMode.SWITCH_DISPATCH);
+    }
+
+    public GameBoy(CPU.ExecutionMode mode) {
         cartridge = null;
-        cpu = new CPU(this);
+        cpu = new CPU(this, mode);
         lcd = new LCD(this);
-        timer = new Timer();
+        timer = new Timer(this);
         divider = new Divider();
+        scheduler = new Scheduler(timer, divider, lcd);
         gamepad = new Controller(this);
         mmu = new MMU(this);
         stopped = false;
@@ -92,18 +112,16 @@ public class GameBoy {
         terminated.set(false);
         while (!terminated.get()) {
             if (!stopped) {
-                int cyclesUsed = cpu.execInstruction();
-                if (timer.notifyCyclesPassed(cyclesUsed)) {
-                    // Timer overflowed: raise interrupt
-                    cpu.raiseInterrupt(CPU.Interrupt.TIMER);
+                if (cpu.isHalted()) {
+                    // Nothing happens until an interrupt is raised, so skip straight to the next event
+                    scheduler.skipToNextEvent(CPU.HALTED_CYCLES);
+                } else {
+                    // Run the CPU up to the next scheduled event (or until it halts)
+                    while (!scheduler.addCycles(cpu.execInstruction()) && !stopped && !cpu.isHalted()) {}
                 }
-                divider.notifyCyclesPassed(cyclesUsed);
 
-                if (lcd.lcdEnabled) {
-                    while (cyclesUsed-- > 0) {
-                        lcd.tick();
-                    }
-                }
+                // Let the other components catch up
+                scheduler.runDueEvents();
             }
 
             if (runAtLoopEnd != null) {
@@ -113,49 +131,102 @@ public class GameBoy {
         }
     }
 
+    // Save the emulator's internal state ("save anywhere"), STATE_SIZE bytes from the buffer's position
+    public void saveState(ByteBuffer buffer) {
+        scheduler.syncAll();
+        buffer.putInt(STATE_MAGIC);
+        buffer.putInt(STATE_VERSION);
+        buffer.putInt(cartridge.mbc.romBankNum);
+        buffer.putInt(cartridge.mbc.ramBankNum);
+        buffer.put((byte) (cartridge.mbc.ramEnabled ? 1 : 0));
+        buffer.put((byte) (stopped ? 1 : 0));
+        mmu.saveState(buffer);
+        cpu.saveState(buffer);
+        lcd.saveState(buffer);
+        timer.saveState(buffer);
+        divider.saveState(buffer);
+    }
+
+    // Load the emulator's internal state ("load anywhere") from the buffer's position
+    public void loadState(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < STATE_SIZE || buffer.getInt() != STATE_MAGIC)
+            throw new IOException("Invalid save state");
+        int version = buffer.getInt();
+        if (version != STATE_VERSION)
+            throw new IOException(String.format("Unsupported save state version (%d)", version));
+
+        cartridge.mbc.romBankNum = buffer.getInt();
+        cartridge.mbc.ramBankNum = buffer.getInt();
+        cartridge.mbc.ramEnabled = buffer.get() != 0;
+        cartridge.mbc.updateBanks();
+        stopped = buffer.get() != 0;
+        mmu.loadState(buffer);
+        cpu.loadState(buffer);
+        lcd.loadState(buffer);
+        timer.loadState(buffer);
+        divider.loadState(buffer);
+        scheduler.reset();
+    }
+
+    private ByteBuffer getStateBuffer() {
+        if (stateBuffer == null)
+            stateBuffer = ByteBuffer.allocate(STATE_SIZE);
+        stateBuffer.clear();
+        return stateBuffer;
+    }
+
     public void saveState(OutputStream stream) throws IOException {
-        // Save the emulator's internal state ("save anywhere")
-        ObjectOutputStream out = new ObjectOutputStream(stream);
+        ByteBuffer buffer = getStateBuffer();
+        saveState(buffer);
         try {
-            out.writeInt(cartridge.mbc.romBankNum);
-            out.writeInt(cartridge.mbc.ramBankNum);
-            out.writeBoolean(cartridge.mbc.ramEnabled);
-            out.writeObject(mmu);
-            out.writeObject(cpu);
-            out.writeObject(lcd);
-            out.writeObject(timer);
-            out.writeObject(divider);
-            out.writeBoolean(stopped);
-            out.close();
-        } catch (IOException e) {
-            out.close();
-            throw e;
+            stream.write(buffer.array(), 0, buffer.position());
+        } finally {
+            stream.close();
         }
     }
 
     public void loadState(InputStream stream) throws IOException, ClassNotFoundException {
-        // Load the emulator's internal state ("load anywhere")
-        ObjectInputStream in = new ObjectInputStream(stream);
+        DataInputStream in = new DataInputStream(stream);
         try {
-            cartridge.mbc.romBankNum = in.readInt();
-            cartridge.mbc.ramBankNum = in.readInt();
-            cartridge.mbc.ramEnabled = in.readBoolean();
-            mmu = (MMU) in.readObject();
-            mmu.gb = this;
-            cpu = (CPU) in.readObject();
-            cpu.gb = this;
-            lcd = (LCD) in.readObject();
-            lcd.gb = this;
-            timer = (Timer) in.readObject();
-            divider = (Divider) in.readObject();
-            stopped = in.readBoolean();
-            in.close();
-        } catch (IOException | ClassNotFoundException e) {
+            ByteBuffer buffer = getStateBuffer();
+            in.readFully(buffer.array(), 0, 4);
+            if (buffer.getInt(0) == SERIALIZATION_MAGIC) {
+                // Saved with Java serialization: put the magic number back in front of the rest
+                loadSerializedState(new SequenceInputStream(
+                        new ByteArrayInputStream(buffer.array(), 0, 4), stream));
+            } else {
+                in.readFully(buffer.array(), 4, STATE_SIZE - 4);
+                loadState(buffer);
+            }
+        } finally {
             in.close();
-            throw e;
         }
     }
 
+    private void loadSerializedState(InputStream stream) throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(stream);
+        cartridge.mbc.romBankNum = in.readInt();
+        cartridge.mbc.ramBankNum = in.readInt();
+        cartridge.mbc.ramEnabled = in.readBoolean();
+        cartridge.mbc.updateBanks();
+        mmu = (MMU) in.readObject();
+        mmu.gb = this;
+        cpu = (CPU) in.readObject();
+        cpu.gb = this;
+        // Display settings rather than part of the state
+        int[] shades = lcd.getShades();
+        FrameSkipper frameSkipper = lcd.getFrameSkipper();
+        lcd = (LCD) in.readObject();
+        lcd.gb = this;
+        lcd.setShades(shades);
+        lcd.setFrameSkipper(frameSkipper);
+        timer = (Timer) in.readObject();
+        timer.gb = this;
+        divider = (Divider) in.readObject();
+        scheduler = new Scheduler(timer, divider, lcd);
+        stopped = in.readBoolean();
+    }
+
     public void saveStateToFile(File f) throws IOException {
         FileOutputStream fos = new FileOutputStream(f);
         GZIPOutputStream zos = new GZIPOutputStream(fos);
@@ -0,0 +1,48 @@
+package creativename.gamedroid.core;
+
+/* The interrupt flag ($FF0F) and interrupt enable ($FFFF) registers. Along with the registers, the
+   set of interrupts which are both raised and enabled is kept up to date, so that the CPU's check
+   for an interrupt to service (made before every instruction) is a single field read */
+public class InterruptController implements MemoryMappable {
+    private int raised;   // IF
+    private int enabled;  // IE
+    private int pending;  // Raised and enabled (bits 0-4)
+
+    // Interrupts which are both raised and enabled, as a bitmask of CPU.Interrupt values
+    public int getPending() {
+        return pending;
+    }
+
+    public int getRaised() {
+        return raised;
+    }
+
+    public int getEnabled() {
+        return enabled;
+    }
+
+    public void raise(int bitmask) {
+        raised |= bitmask;
+        pending = raised & enabled & 0x1F;
+    }
+
+    // Clears the interrupt's flag once the CPU has started servicing it
+    public void acknowledge(int bitmask) {
+        raised &= ~bitmask;
+        pending = raised & enabled & 0x1F;
+    }
+
+    @Override
+    public byte read(char address) {
+        return (byte) ((address == 0xFF0F) ? raised : enabled);
+    }
+
+    @Override
+    public void write(char address, byte value) {
+        if (address == 0xFF0F)
+            raised = value & 0xFF;
+        else
+            enabled = value & 0xFF;
+        pending = raised & enabled & 0x1F;
+    }
+}
@@ -3,10 +3,14 @@ package creativename.gamedroid.core;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /* Provides GameBoy graphics data manipulation, processing, and output */
-public class LCD implements MemoryMappable, Serializable {
+public class LCD implements MemoryMappable, Clocked, Serializable {
+    // Matches the implicit UID of the original class so older save states still load
+    private static final long serialVersionUID = 3994043667054448814L;
+
     private enum ScreenState {
         HBLANK(0),
         VBLANK(1),
@@ -24,14 +28,18 @@ public class LCD implements MemoryMappable, Serializable {
         }
     }
 
-    // GameBoy monochrome palette
-    private static final int[] palette = {
+    // GameBoy monochrome shades
+    public static final int[] DEFAULT_SHADES = {
             0xFFFFFFFF,  // 0% black
             0xFFC0C0C0,  // 33% black
             0xFF606060,  // 66% black
             0xFF000000   // 100% black
     };
 
+    /* VRAM and OAM, the 9 plain registers, LCDC, STAT, memory locks, mode and its remaining
+       cycles, and the 10 sprites found for the current line */
+    static final int STATE_SIZE = 0x1800 + 0x800 + 0xA0 + 9 + 6 + 1 + 10 * 5;
+
     public transient GameBoy gb;
     public transient int[] framebuffer;
     private ScreenState screenState;
@@ -42,6 +50,14 @@ public class LCD implements MemoryMappable, Serializable {
     private MappableByte windowX, windowY;  // Window = BG layer that can overlay normal BG
     private Sprite[] foundSprites;
 
+    /* Sprites on each visible line, as OAM offsets: line n's are at [n * MAX_LINE_SPRITES, +
+       lineSpriteCounts[n]). Rebuilt on the next sprite search after OAM or the sprite size changes */
+    private static final int MAX_LINE_SPRITES = 10;
+    private transient byte[] lineSprites;
+    private transient int[] lineSpriteCounts;
+    private transient boolean spriteBucketsDirty;
+    private transient int spritesFound;  // Used slots in foundSprites
+
     private transient LCDControlRegister lcdControl;
     public boolean lcdEnabled;
     private char windowTileMapOfs;       // i.e., second tile map starts $400 bytes into buffer
@@ -85,6 +101,14 @@ public class LCD implements MemoryMappable, Serializable {
                                            00000000 -> $00 */
     private MemoryBuffer tileBitmaps;
 
+    /* The same tiles decoded to one palette index per pixel (64 bytes per tile, row by row).
+       Writes to tile data go through tileMemory, which decodes the row written */
+    private transient byte[] tilePixels;
+    private transient TileMemory tileMemory;
+    private transient byte[] linePaletteIndices;  // Background/window color of each pixel on the line
+    private transient FrameSkipper frameSkipper;   // null: draw every frame
+    private transient boolean drawingFrame;
+
     /* 2 tile maps, each 1024 bytes in size (32x32 tiles). Buffer indices
        correspond to on-screen location. Values are tile numbers */
     private MemoryBuffer bgTileMaps;
@@ -97,6 +121,11 @@ public class LCD implements MemoryMappable, Serializable {
                  ++-------------- Palette for color 3 */
     private WriteOnlyRegister bgPalette, sprPalette1, sprPalette2;
 
+    /* The screen's 4 shades (ARGB, lightest first), and the color each palette maps its 4 indices
+       to. The palette colors are rebuilt whenever a palette register or the shades change */
+    private transient int[] shades;
+    private transient int[] bgColors, sprColors1, sprColors2;
+
     /* Object attribute memory (sprites; 4 bytes/sprite)
            Byte 0: Sprite Y position
            Byte 1: Sprite X position
@@ -114,10 +143,13 @@ public class LCD implements MemoryMappable, Serializable {
         this.gb = gb;
 
         tileBitmaps = new MemoryBuffer(0x1800, 0x8000, ~0);
+        tileMemory = new TileMemory();
+        tilePixels = new byte[384 * 64];
         bgTileMaps = new MemoryBuffer(0x800, 0x9800, ~0);
         oamdma = new OAMDMARegister();
         oam = new MemoryBuffer(0xA0, 0xFE00, ~0);
         framebuffer = new int[144*160];
+        linePaletteIndices = new byte[160];
         lcdControl = new LCDControlRegister();
         lcdStatus = new LCDStatusRegister();
         scanline = new ScanlineRegister();
@@ -129,7 +161,10 @@ public class LCD implements MemoryMappable, Serializable {
         bgPalette = new WriteOnlyRegister();
         sprPalette1 = new WriteOnlyRegister();
         sprPalette2 = new WriteOnlyRegister();
-        foundSprites = new Sprite[10];
+        foundSprites = new Sprite[MAX_LINE_SPRITES];
+        createSpriteBuckets();
+        drawingFrame = true;
+        createPaletteColors();
         reset();
     }
 
@@ -159,9 +194,11 @@ public class LCD implements MemoryMappable, Serializable {
         bgPalette.data = (byte)0xFC;
         sprPalette1.data = (byte)0xFF;
         sprPalette2.data = (byte)0xFF;
+        updatePaletteColors();
 
         for (int i = 0; i < foundSprites.length; ++i)
             foundSprites[i] = new Sprite();
+        spriteBucketsDirty = true;
 
         // Start rendering from the top left of the frame
         screenState = ScreenState.OAM_SEARCH;
@@ -172,13 +209,89 @@ public class LCD implements MemoryMappable, Serializable {
         stream.defaultReadObject();
         oamdma = new OAMDMARegister();
         framebuffer = new int[144*160];
+        linePaletteIndices = new byte[160];
         lcdControl = new LCDControlRegister();
         lcdStatus = new LCDStatusRegister();
+        createSpriteBuckets();
+        spritesFound = foundSprites.length;  // Not known for the line in progress
+        drawingFrame = true;
+        createPaletteColors();
+        updatePaletteColors();
+        tileMemory = new TileMemory();
+        tilePixels = new byte[384 * 64];
+        for (int i = 0; i < tileBitmaps.data.length; i += 2)
+            decodeTileRow(i);
+    }
+
+    void saveState(ByteBuffer buffer) {
+        buffer.put(tileBitmaps.data);
+        buffer.put(bgTileMaps.data);
+        buffer.put(oam.data);
+        buffer.put(scanline.data);
+        buffer.put(cmpScanline.data);
+        buffer.put(scrollX.data);
+        buffer.put(scrollY.data);
+        buffer.put(windowX.data);
+        buffer.put(windowY.data);
+        buffer.put(bgPalette.data);
+        buffer.put(sprPalette1.data);
+        buffer.put(sprPalette2.data);
+        buffer.put(lcdControl.read((char) 0xFF40));
+        buffer.put(lcdStatus.read((char) 0xFF41));
+        buffer.put((byte) ((tileBitmaps.enabled ? 1 : 0) | (bgTileMaps.enabled ? 2 : 0) | (oam.enabled ? 4 : 0)));
+        buffer.put(screenState.getStateCode());
+        buffer.putChar(remainingStateCycles);
+
+        buffer.put((byte) spritesFound);
+        for (Sprite s : foundSprites) {
+            buffer.putShort((short) s.x);
+            buffer.put((byte) ((s.hasFrontPriority ? 1 : 0) | (s.palette == sprPalette2 ? 2 : 0)));
+            buffer.putChar(s.sprTileRow);
+        }
+    }
+
+    void loadState(ByteBuffer buffer) {
+        buffer.get(tileBitmaps.data);
+        buffer.get(bgTileMaps.data);
+        buffer.get(oam.data);
+        scanline.data = buffer.get();
+        cmpScanline.data = buffer.get();
+        scrollX.data = buffer.get();
+        scrollY.data = buffer.get();
+        windowX.data = buffer.get();
+        windowY.data = buffer.get();
+        bgPalette.data = buffer.get();
+        sprPalette1.data = buffer.get();
+        sprPalette2.data = buffer.get();
+        lcdControl.restore(buffer.get());
+        lcdStatus.write((char) 0xFF41, buffer.get());
+        int locks = buffer.get();
+        tileBitmaps.setEnabled((locks & 1) != 0);
+        bgTileMaps.setEnabled((locks & 2) != 0);
+        oam.setEnabled((locks & 4) != 0);
+        screenState = ScreenState.values()[buffer.get() & 3];
+        remainingStateCycles = buffer.getChar();
+
+        spritesFound = buffer.get();
+        for (Sprite s : foundSprites) {
+            s.x = buffer.getShort();
+            int flags = buffer.get();
+            s.hasFrontPriority = (flags & 1) != 0;
+            s.palette = ((flags & 2) == 0) ? sprPalette1 : sprPalette2;
+            s.sprTileRow = buffer.getChar();
+        }
+
+        // Rebuild what is derived from the loaded state
+        for (int i = 0; i < tileBitmaps.data.length; i += 2)
+            decodeTileRow(i);
+        spriteBucketsDirty = true;
+        drawingFrame = true;
+        updatePaletteColors();
     }
 
     private MemoryMappable dispatchAddress(char address) {
         if (address >= 0x8000 && address <= 0x97FF)
-            return tileBitmaps;
+            return tileMemory;
         else if (address >= 0x9800 && address <= 0x9FFF)
             return bgTileMaps;
         else if (address >= 0xFE00 && address <= 0xFE9F)
@@ -212,6 +325,20 @@ public class LCD implements MemoryMappable, Serializable {
         return null;
     }
 
+    // Region backing the given VRAM address (lets the MMU map VRAM pages directly)
+    MemoryMappable getVideoRam(char address) {
+        return (address < 0x9800) ? tileMemory : bgTileMaps;
+    }
+
+    // Updates the decoded pixels for the tile row containing the given byte of tile data
+    private void decodeTileRow(int index) {
+        int low = tileBitmaps.data[index & ~1] & 0xFF;
+        int high = tileBitmaps.data[index | 1] & 0xFF;
+        int pixel = (index >>> 1) * 8;  // 2 bytes per row in, 8 out
+        for (int x = 7; x >= 0; --x, ++pixel)
+            tilePixels[pixel] = (byte) (((low >>> x) & 1) | (((high >>> x) & 1) << 1));
+    }
+
     public byte read(char address) {
         MemoryMappable dest = dispatchAddress(address);
         if (dest == null)
@@ -224,6 +351,57 @@ public class LCD implements MemoryMappable, Serializable {
         if (dest == null)
             throw new IllegalArgumentException(String.format("Invalid LCD I/O write address ($%04X)", (int)address));
         dest.write(address, value);
+        if (dest == bgPalette || dest == sprPalette1 || dest == sprPalette2)
+            updatePaletteColors();
+        else if (dest == oam)
+            spriteBucketsDirty = true;
+    }
+
+    private void createSpriteBuckets() {
+        lineSprites = new byte[144 * MAX_LINE_SPRITES];
+        lineSpriteCounts = new int[144];
+        spriteBucketsDirty = true;
+    }
+
+    private void createPaletteColors() {
+        shades = DEFAULT_SHADES.clone();
+        bgColors = new int[4];
+        sprColors1 = new int[4];
+        sprColors2 = new int[4];
+    }
+
+    private void updatePaletteColors() {
+        for (int i = 0; i < 4; ++i) {
+            bgColors[i] = shades[(bgPalette.data >>> (i * 2)) & 3];
+            sprColors1[i] = shades[(sprPalette1.data >>> (i * 2)) & 3];
+            sprColors2[i] = shades[(sprPalette2.data >>> (i * 2)) & 3];
+        }
+    }
+
+    public FrameSkipper getFrameSkipper() {
+        return frameSkipper;
+    }
+
+    // Sets the policy for skipping frames (null to draw every frame)
+    public void setFrameSkipper(FrameSkipper frameSkipper) {
+        this.frameSkipper = frameSkipper;
+    }
+
+    public int[] getShades() {
+        return shades.clone();
+    }
+
+    // Copies the shades into an existing array (e.g., where allocating for every frame would be wasteful)
+    public void getShades(int[] shades) {
+        System.arraycopy(this.shades, 0, shades, 0, 4);
+    }
+
+    // Sets the 4 shades (ARGB, lightest first) the screen shows
+    public void setShades(int[] shades) {
+        if (shades.length != 4)
+            throw new IllegalArgumentException(String.format("Invalid number of shades (%d)", shades.length));
+        System.arraycopy(shades, 0, this.shades, 0, 4);
+        updatePaletteColors();
     }
 
     private void setScreenState(ScreenState state) {
@@ -232,6 +410,8 @@ public class LCD implements MemoryMappable, Serializable {
         oam.setEnabled(state != ScreenState.OAM_SEARCH);
         tileBitmaps.setEnabled(vramEnabled);
         bgTileMaps.setEnabled(vramEnabled);
+        if (!vramEnabled)
+            gb.mmu.unmapPages(0x80, 0xA0);
         screenState = state;
 
         if (state == ScreenState.VBLANK) {
@@ -249,30 +429,37 @@ public class LCD implements MemoryMappable, Serializable {
         }
     }
 
-    private void discoverSprites() {
+    // Sorts sprites into per-line buckets (first 10 on each visible line, in OAM order)
+    private void updateSpriteBuckets() {
         int sprHeight = tallSpritesEnabled ? 16 : 8;
-        int oamPos = 0;
-        int spritesFound = 0;
-
-        // Find the first 10 sprites in memory on the current scanline
-        while (spritesFound < foundSprites.length) {
-            if (oamPos < oam.data.length) {
-                int sprY = (oam.data[oamPos++] & 0xFF) - 16;
-                int sl = scanline.data & 0xFF;
-                // The first byte of sprite data in OAM is the Y coordinate, use it to check position
-                if (sprY <= sl && sprY + sprHeight > sl) {
-                    // Sprite is on the current scanline. Copy to sprite buffer
-                    foundSprites[spritesFound++].update(sprY, (oam.data[oamPos++] & 0xFF) - 8,
-                            oam.data[oamPos++], oam.data[oamPos++]);
-                } else {
-                    // Move to next sprite in OAM
-                    oamPos += 3;
-                }
-            } else {
-                // Clear remaining (unused) sprite slots
-                foundSprites[spritesFound++].update(-16, -8, (byte)0, (byte)0);
+        Arrays.fill(lineSpriteCounts, 0);
+        for (int oamPos = 0; oamPos < oam.data.length; oamPos += 4) {
+            int sprY = (oam.data[oamPos] & 0xFF) - 16;
+            int end = Math.min(sprY + sprHeight, 144);
+            for (int line = Math.max(sprY, 0); line < end; ++line) {
+                if (lineSpriteCounts[line] < MAX_LINE_SPRITES)
+                    lineSprites[line * MAX_LINE_SPRITES + lineSpriteCounts[line]++] = (byte) oamPos;
             }
         }
+        spriteBucketsDirty = false;
+    }
+
+    private void discoverSprites() {
+        if (spriteBucketsDirty)
+            updateSpriteBuckets();
+
+        // Copy the current scanline's sprites to the sprite buffer
+        int sl = scanline.data & 0xFF;
+        spritesFound = (sl < 144) ? lineSpriteCounts[sl] : 0;
+        for (int i = 0; i < spritesFound; ++i) {
+            int oamPos = lineSprites[sl * MAX_LINE_SPRITES + i] & 0xFF;
+            foundSprites[i].update((oam.data[oamPos] & 0xFF) - 16, (oam.data[oamPos + 1] & 0xFF) - 8,
+                    oam.data[oamPos + 2], oam.data[oamPos + 3]);
+        }
+
+        // Clear remaining (unused) sprite slots
+        for (int i = spritesFound; i < foundSprites.length; ++i)
+            foundSprites[i].clear();
     }
 
     private char getBitmapSliver(int tileNum, int row, int tableOfs) {
@@ -283,117 +470,136 @@ public class LCD implements MemoryMappable, Serializable {
     }
 
     private void renderLine() {
-        /* Render current scanline to framebuffer
+        /* Render current scanline to framebuffer. The background and window are drawn a tile
+           at a time, then sprites are drawn over them
 
            Note: A /very/ small subset of games may use mid-scanline effects, which will
                  not be correctly displayed using this approach. We will disregard them
                  for this project, as its focus is primarily software design. */
 
-        char bgTileRow = 0;
-        int bgY = (scanline.data + scrollY.data) & 0xFF;
-        int winY = (scanline.data - windowY.data) & 0xFF;
-
-        for (int px = 0; px < 160; ++px) {
-            int color = palette[0];
-            int bgPaletteIdx = 0;
-            int bgX = 0;
-            int y = 0;
-            char tileMapOfs = 0;
-            boolean bgVisible;
-
-            if (windowEnabled && (scanline.data & 0xFF) >= (windowY.data & 0xFF) && px >= ((windowX.data - 7) & 0xFF)) {
-                // Show window
-                bgX = (px - windowX.data + 7) & 0xFF;
-                y = winY;
-                tileMapOfs = windowTileMapOfs;
-                bgVisible = true;
-            } else if (bgEnabled) {
-                // Show regular background
-                bgX = (px + scrollX.data) & 0xFF;
-                y = bgY;
-                tileMapOfs = bgTileMapOfs;
-                bgVisible = true;
-            } else {
-                color = palette[0];
-                bgPaletteIdx = 0;
-                bgVisible = false;
-            }
+        int line = scanline.data & 0xFF;
+        int lineOfs = line * 160;
 
-            if (bgVisible) {
-                // Latch next background/window tile
-                int tileX = bgX % 8;
-                if (px == 0 || tileX == 0) {
-                    int tileNum = bgTileMaps.data[tileMapOfs + (bgX / 8) + (y / 8 * 32)] & 0xFF;
+        // The window covers the rest of the line from where it starts (160: not shown)
+        int windowStart = 160;
+        if (windowEnabled && line >= (windowY.data & 0xFF))
+            windowStart = Math.min((windowX.data - 7) & 0xFF, 160);
 
-                    // Tile indices are treated as signed if using the second tile set
-                    if (bgTilesetOfs == 0x800)
-                        tileNum = (byte) tileNum + 128;
+        if (bgEnabled) {
+            renderTiles(0, windowStart, scrollX.data & 0xFF, (line + scrollY.data) & 0xFF, bgTileMapOfs, lineOfs);
+        } else {
+            Arrays.fill(framebuffer, lineOfs, lineOfs + windowStart, shades[0]);
+            Arrays.fill(linePaletteIndices, 0, windowStart, (byte) 0);
+        }
+        if (windowStart < 160) {
+            renderTiles(windowStart, 160, (windowStart - windowX.data + 7) & 0xFF,
+                    (line - windowY.data) & 0xFF, windowTileMapOfs, lineOfs);
+        }
 
-                    bgTileRow = getBitmapSliver(tileNum, y % 8, bgTilesetOfs);
-                }
+        if (spritesEnabled && spritesFound > 0)
+            renderSprites(lineOfs);
+    }
 
-                // Fetch 2-bit palette index to render appropriate color
-                bgPaletteIdx = ((bgTileRow >>> (15 - tileX)) & 1) | (((bgTileRow >>> (7 - tileX)) << 1) & 2);
-                color = palette[(bgPalette.data >>> (bgPaletteIdx * 2)) & 3];
+    // Draws pixels [start, end) of the line from a tile map, starting at (mapX, mapY) in the map
+    private void renderTiles(int start, int end, int mapX, int mapY, int tileMapOfs, int lineOfs) {
+        int mapRowOfs = tileMapOfs + (mapY / 8) * 32;
+        int tileRowOfs = (mapY % 8) * 8;
+
+        for (int px = start; px < end; ) {
+            int tileNum = bgTileMaps.data[mapRowOfs + mapX / 8] & 0xFF;
+
+            // Tile indices are treated as signed if using the second tile set
+            if (bgTilesetOfs == 0x800)
+                tileNum = (byte) tileNum + 128;
+
+            // Rest of the tile's row (the first and last tiles may be cut off)
+            int src = (bgTilesetOfs / 16 + tileNum) * 64 + tileRowOfs + mapX % 8;
+            int n = Math.min(8 - mapX % 8, end - px);
+            for (int i = 0; i < n; ++i, ++px) {
+                int paletteIdx = tilePixels[src + i];
+                linePaletteIndices[px] = (byte) paletteIdx;
+                framebuffer[lineOfs + px] = bgColors[paletteIdx];
             }
+            mapX = (mapX + n) & 0xFF;
+        }
+    }
 
-            if (spritesEnabled) {
-                for (Sprite s : foundSprites) {
-                    if (px >= s.x && px < s.x + 8) {
-                        int x = px - s.x;
-                        int pIdx = ((s.sprTileRow >>> (15 - x)) & 1) |
-                                    (((s.sprTileRow >>> (7 - x)) << 1) & 2);
-
-                        // First sprite with non-transparent pixel gets drawn
-                        if (pIdx != 0 && (bgPaletteIdx == 0 || s.hasFrontPriority)) {
-                            color = palette[(s.palette.data >>> (pIdx * 2)) & 3];
-                            break;
-                        }
-                    }
-                }
+    private void renderSprites(int lineOfs) {
+        // The first sprite in OAM with a visible pixel wins, so draw them last to first
+        for (int i = spritesFound - 1; i >= 0; --i) {
+            Sprite s = foundSprites[i];
+            int[] colors = (s.palette == sprPalette1) ? sprColors1 : sprColors2;
+            int end = Math.min(s.x + 8, 160);
+            for (int px = Math.max(s.x, 0); px < end; ++px) {
+                int x = px - s.x;
+                int pIdx = ((s.sprTileRow >>> (15 - x)) & 1) |
+                            (((s.sprTileRow >>> (7 - x)) << 1) & 2);
+
+                // Transparent pixels and pixels behind a non-zero background color aren't drawn
+                if (pIdx != 0 && (linePaletteIndices[px] == 0 || s.hasFrontPriority))
+                    framebuffer[lineOfs + px] = colors[pIdx];
             }
-            framebuffer[(scanline.data & 0xFF) * 160 + px] = color;
         }
     }
 
-    public void tick() {
-        if (lcdEnabled) {
-            if (--remainingStateCycles == 0) {
-                // Current screen state ending: time to transition
-                switch (screenState) {
-                    case OAM_SEARCH:
-                        discoverSprites();
-                        setScreenState(ScreenState.DATA_TRANSFER);
-                        remainingStateCycles = 172;
-                        break;
-                    case DATA_TRANSFER:
-                        renderLine();
-                        setScreenState(ScreenState.HBLANK);
-                        remainingStateCycles = 204;
-                        break;
-                    case HBLANK:
-                    case VBLANK:
-                        // End of line
-                        scanline.data = (byte)(((scanline.data & 0xFF) + 1) % 154);
-
-                        if (scanlineCheckEnabled && scanline.data == cmpScanline.data)
-                            gb.cpu.raiseInterrupt(CPU.Interrupt.LCD);
-
-                        if ((scanline.data & 0xFF) < 144) {
-                            // Rendering visible frame: move to next visible scanline
-                            setScreenState(ScreenState.OAM_SEARCH);
-                            remainingStateCycles = 80;
-                        } else if (scanline.data == (byte) 144) {
-                            // Rendering just entered VBlank
-                            setScreenState(ScreenState.VBLANK);
-                            gb.renderTarget.frameReady(framebuffer);
-                        }
-
-                        if (screenState == ScreenState.VBLANK)
-                            remainingStateCycles = 456;
-                        break;
+    @Override
+    public void advance(int cycles) {
+        if (!lcdEnabled)
+            return;
+
+        // Jump straight from one screen state transition to the next
+        while (cycles >= remainingStateCycles) {
+            cycles -= remainingStateCycles;
+            nextScreenState();
+        }
+        remainingStateCycles -= cycles;
+    }
+
+    @Override
+    public int cyclesUntilEvent() {
+        // Every screen state transition is an event, since interrupts may be raised and VRAM locked
+        return lcdEnabled ? remainingStateCycles : NO_EVENT;
+    }
+
+    private void nextScreenState() {
+        // Current screen state ending: time to transition
+        switch (screenState) {
+            case OAM_SEARCH:
+                discoverSprites();
+                setScreenState(ScreenState.DATA_TRANSFER);
+                remainingStateCycles = 172;
+                break;
+            case DATA_TRANSFER:
+                if (drawingFrame)
+                    renderLine();
+                setScreenState(ScreenState.HBLANK);
+                remainingStateCycles = 204;
+                break;
+            case HBLANK:
+            case VBLANK:
+                // End of line
+                scanline.data = (byte)(((scanline.data & 0xFF) + 1) % 154);
+
+                if (scanlineCheckEnabled && scanline.data == cmpScanline.data)
+                    gb.cpu.raiseInterrupt(CPU.Interrupt.LCD);
+
+                if ((scanline.data & 0xFF) < 144) {
+                    // Rendering visible frame: move to next visible scanline
+                    setScreenState(ScreenState.OAM_SEARCH);
+                    remainingStateCycles = 80;
+                } else if (scanline.data == (byte) 144) {
+                    // Rendering just entered VBlank
+                    setScreenState(ScreenState.VBLANK);
+                    if (drawingFrame)
+                        gb.renderTarget.frameReady(framebuffer);
+                    else if (gb.renderTarget instanceof FrameSkipListener)
+                        ((FrameSkipListener) gb.renderTarget).frameSkipped();
+                    drawingFrame = (frameSkipper == null || frameSkipper.drawNextFrame());
                 }
-            }
+
+                if (screenState == ScreenState.VBLANK)
+                    remainingStateCycles = 456;
+                break;
         }
     }
 
@@ -431,13 +637,7 @@ public class LCD implements MemoryMappable, Serializable {
 
         @Override
         public void write(char address, byte value) {
-            windowTileMapOfs = (char) ((value & 0x40) * 0x10);
-            windowEnabled = ((value & 0x20) != 0);
-            bgTilesetOfs = (char) (0x800 - ((value & 0x10) * 0x80));
-            bgTileMapOfs = (char) ((value & 8) * 0x80);
-            tallSpritesEnabled = ((value & 4) != 0);
-            spritesEnabled = ((value & 2) != 0);
-            bgEnabled = ((value & 1) != 0);
+            setFlags(value);
 
             if (((value & 0x80) == 0)) {
                 lcdEnabled = false;
@@ -448,7 +648,7 @@ public class LCD implements MemoryMappable, Serializable {
                 scanline.data = 0;
 
                 // Blank screen when disabled
-                Arrays.fill(framebuffer, palette[0]);
+                Arrays.fill(framebuffer, shades[0]);
                 gb.renderTarget.frameReady(framebuffer);
             } else if (!lcdEnabled) {
                 // LCD transitioning from disabled to enabled
@@ -457,6 +657,24 @@ public class LCD implements MemoryMappable, Serializable {
                 remainingStateCycles = 76;
             }
         }
+
+        // Sets every setting from a saved value, without turning the LCD on or off
+        void restore(byte value) {
+            setFlags(value);
+            lcdEnabled = ((value & 0x80) != 0);
+        }
+
+        private void setFlags(byte value) {
+            windowTileMapOfs = (char) ((value & 0x40) * 0x10);
+            windowEnabled = ((value & 0x20) != 0);
+            bgTilesetOfs = (char) (0x800 - ((value & 0x10) * 0x80));
+            bgTileMapOfs = (char) ((value & 8) * 0x80);
+            if (tallSpritesEnabled != ((value & 4) != 0))
+                spriteBucketsDirty = true;
+            tallSpritesEnabled = ((value & 4) != 0);
+            spritesEnabled = ((value & 2) != 0);
+            bgEnabled = ((value & 1) != 0);
+        }
     }
 
     private class LCDStatusRegister implements MemoryMappable {
@@ -516,15 +734,44 @@ public class LCD implements MemoryMappable, Serializable {
             char src = (char) (value << 8);
             for (int i = 0; i < 0xA0; ++i)
                 oam.data[i] = (byte)(gb.mmu.read8((char) (src + i)));
+            spriteBucketsDirty = true;
+        }
+    }
+
+    /* Tile data ($8000-$97FF). Reads can be mapped straight to the buffer, but writes have to
+       come through here so that the decoded tiles are kept up to date */
+    class TileMemory implements MemoryMappable {
+        void mapPage(MMU mmu, int page) {
+            if (tileBitmaps.enabled)
+                mmu.mapPage(page, tileBitmaps.data, null, (page << 8) - tileBitmaps.offset);
+        }
+
+        @Override
+        public byte read(char address) {
+            return tileBitmaps.read(address);
+        }
+
+        @Override
+        public void write(char address, byte value) {
+            tileBitmaps.write(address, value);
+            decodeTileRow(address - tileBitmaps.offset);
         }
     }
 
     private class Sprite implements Serializable {
+        // Matches the implicit UID of the original class so older save states still load
+        private static final long serialVersionUID = -3693565891958045149L;
+
         public int x;
         public boolean hasFrontPriority;
         public char sprTileRow;
         public MappableByte palette;
 
+        public void clear() {
+            x = -8;
+            sprTileRow = 0;
+        }
+
         public void update(int y, int x, byte tileNum, byte flags) {
             this.x = x;
             hasFrontPriority = ((flags & 0x80) == 0);
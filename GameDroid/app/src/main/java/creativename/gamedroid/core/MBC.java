@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 /* Memory bank controller base class
    Subclasses should implement cartridge ROM/RAM bank switching in writeMBC() */
@@ -13,13 +14,35 @@ public abstract class MBC implements MemoryMappable {
     private byte[] extRam;      // Not always allocated (depends on cartridge type)
     public int ramBankNum;      // Which RAM bank is mapped to $A000-$BFFF?
     public boolean ramEnabled;
+    private MMU memoryMap;      // Has pages of this cartridge mapped directly
+
+    /* Cached bank offsets (updated by updateBanks()) so that reads don't need a modulo:
+         * ROM $4000-$7FFF -> rom[romBankOffset + address]
+         * RAM $A000-$BFFF -> extRam[ramBankOffset + ((address - $A000) & ramWindowMask)]
+       The ROM is padded to a whole number of banks (at least 2) when it isn't one already, and RAM
+       sizes are powers of two (RAM smaller than a bank is mirrored across it) */
+    private int romBankOffset;
+    private int ramBankOffset;
+    private int ramWindowMask;
 
     protected MBC(byte[] rom, int extRamSize) {
-        this.rom = rom;
+        this.rom = padRom(rom);
         this.extRam = new byte[extRamSize];
         romBankNum = 1;
         ramBankNum = 0;
         ramEnabled = true;
+        updateBanks();
+    }
+
+    /* Trimmed and homebrew ROMs aren't always a whole number of banks. Padding them (as unconnected
+       memory, which reads as $FF) keeps every bank offset within the array */
+    private static byte[] padRom(byte[] rom) {
+        int size = Math.max(0x8000, (rom.length + 0x3FFF) & ~0x3FFF);
+        if (size == rom.length)
+            return rom;
+        byte[] padded = Arrays.copyOf(rom, size);
+        Arrays.fill(padded, rom.length, size, (byte) 0xFF);
+        return padded;
     }
 
     public void saveRamToFile(File f) throws IOException {
@@ -41,6 +64,7 @@ public abstract class MBC implements MemoryMappable {
             byte[] buf = new byte[extRam.length];
             if (fis.read(buf) == buf.length) {
                 extRam = buf;
+                updateBanks();
             } else {
                 throw new IOException("Could read all bytes");
             }
@@ -54,14 +78,52 @@ public abstract class MBC implements MemoryMappable {
     // Handles custom MBC logic (i.e., bank switching, enabling/disabling RAM, etc.)
     protected abstract void writeMBC(char address, byte value);
 
+    // Can cartridge RAM writes be made directly to memory, or do they need to go through write()?
+    protected boolean hasDirectRamWrites() {
+        return true;
+    }
+
+    // Maps the given page of cartridge space into the MMU page tables, if it is plain memory
+    void mapPage(MMU mmu, int page) {
+        memoryMap = mmu;
+        if (page < 0x40) {
+            mmu.mapPage(page, rom, null, page << 8);
+        } else if (page < 0x80) {
+            mmu.mapPage(page, rom, null, romBankOffset + (page << 8));
+        } else if (page >= 0xA0 && page < 0xC0) {
+            if (ramEnabled && ramWindowMask >= 0xFF)
+                mmu.mapPage(page, extRam, hasDirectRamWrites() ? extRam : null, getRamBankIndex((char) (page << 8)));
+        }
+    }
+
+    /* Must be called when the bank numbers or RAM enable flag change (done automatically for
+       writes to the MBC registers) */
+    public void updateBanks() {
+        romBankOffset = ((romBankNum * 0x4000) % rom.length) - 0x4000;
+        if (extRam.length > 0) {
+            ramBankOffset = (ramBankNum * 0x2000) % extRam.length;
+            ramWindowMask = Math.min(extRam.length, 0x2000) - 1;
+        }
+
+        if (memoryMap != null) {
+            memoryMap.unmapPages(0x40, 0x80);
+            memoryMap.unmapPages(0xA0, 0xC0);
+        }
+    }
+
+    // Offset of the switchable bank: ROM $4000-$7FFF is at rom[getRomBankOffset() + address]
+    int getRomBankOffset() {
+        return romBankOffset;
+    }
+
     private int getRamBankIndex(char addr) {
         if (extRam.length == 0)
             return -1;
-        return (((addr - 0xA000) + (ramBankNum * 0x2000)) % extRam.length);
+        return ramBankOffset + ((addr - 0xA000) & ramWindowMask);
     }
 
     private boolean ramLocationAccessible(int idx) {
-        return ramEnabled && extRam.length > 0 && idx < extRam.length;
+        return ramEnabled && idx > -1;
     }
 
     // TODO: RTC registers
@@ -71,12 +133,12 @@ public abstract class MBC implements MemoryMappable {
         if (address < 0x4000)
             return rom[address];
         else if (address < 0x8000)
-            return rom[((address - 0x4000) + (romBankNum * 0x4000)) % rom.length];
+            return rom[romBankOffset + address];
 
         else if (address > 0x9FFF && address < 0xC000) {
             int i = getRamBankIndex(address);
             // $FF is returned if RAM is disabled or not present at the address specified
-            if (i > -1 && ramLocationAccessible(i))
+            if (ramLocationAccessible(i))
                 return extRam[i];
             else
                 return (byte)0xFF;
@@ -87,11 +149,17 @@ public abstract class MBC implements MemoryMappable {
 
     @Override
     public void write(char address, byte value) {
-        if (address < 0x8000)
+        if (address < 0x8000) {
+            int oldRomBankNum = romBankNum;
+            int oldRamBankNum = ramBankNum;
+            boolean oldRamEnabled = ramEnabled;
             writeMBC(address, value);
+            if (romBankNum != oldRomBankNum || ramBankNum != oldRamBankNum || ramEnabled != oldRamEnabled)
+                updateBanks();
+        }
         else if (address > 0x9FFF && address < 0xC000) {
             int i = getRamBankIndex(address);
-            if (i > -1 && ramLocationAccessible(i)) {
+            if (ramLocationAccessible(i)) {
                 // Write to cartridge RAM if present
                 extRam[i] = value;
             }
@@ -18,6 +18,12 @@ public class MBC2 extends MBC {
         super.write(address, value);
     }
 
+    @Override
+    protected boolean hasDirectRamWrites() {
+        // Writes need to be masked (see write())
+        return false;
+    }
+
     @Override
     protected void writeMBC(char address, byte value) {
         if (address < 0x2000) {
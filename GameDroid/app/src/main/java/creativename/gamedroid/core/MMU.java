@@ -2,28 +2,155 @@ package creativename.gamedroid.core;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /* The memory mapping unit */
 public class MMU implements Serializable {
+    // Matches the implicit UID of the original class so older save states still load
+    private static final long serialVersionUID = 4499813678655632266L;
+
+    // The interrupt registers are saved as MappableBytes, as they were before InterruptController
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("workRam", MemoryBuffer.class),
+        new ObjectStreamField("stack", MemoryBuffer.class),
+        new ObjectStreamField("raisedInterrupts", MappableByte.class),
+        new ObjectStreamField("enabledInterrupts", MappableByte.class)
+    };
+
+    static final int STATE_SIZE = 0x2000 + 0x7F + 2;
+
     public transient GameBoy gb;
-    final private MemoryBuffer workRam;
-    final private MemoryBuffer stack;
-    final private MappableByte raisedInterrupts;
-    final private MappableByte enabledInterrupts;
+    private MemoryBuffer workRam;
+    private MemoryBuffer stack;
+    transient InterruptController interrupts;
     private transient MemoryCursor8 mem8Cache;
     private transient MemoryCursor16 mem16Cache;
     final static private InvalidRegion invalidMemory = new InvalidRegion();
 
+    /* Page tables (one entry per 256-byte page). Pages backed by plain memory (RAM, ROM banks)
+       point straight at the backing array, and are accessed with a single array load. Pages
+       without an entry (I/O, locked VRAM, unmapped regions, etc.) go through dispatchAddress().
+       Entries are filled in lazily on the first slow access to a page, and cleared by
+       unmapPages() whenever the backing memory changes (bank switches, VRAM locking) */
+    private transient byte[][] readPages;
+    private transient int[] readOffsets;
+    private transient byte[][] writePages;
+    private transient int[] writeOffsets;
+
+    /* Work RAM holding code decoded by the block cache (codeBytes is indexed by offset into work
+       RAM). Pages with code are never mapped for writing, so that writes to them go through
+       writeSlow(), which bumps the page's code generation if one of its code bytes is overwritten.
+       hasCode is only set once the block cache has marked code, so other cores skip the check
+       altogether. mappingGeneration changes whenever cached code may have moved (ROM bank
+       switches, or code being overwritten), and tells the CPU when it can no longer trust a block
+       it is partway through */
+    private transient boolean[] codePages;
+    private transient boolean[] codeBytes;
+    private transient boolean hasCode;
+    private transient int[] codeGenerations;  // Per work RAM page
+    private transient int mappingGeneration;
+
     public MMU(GameBoy gb) {
         this.gb = gb;
         workRam = new MemoryBuffer(0x2000, 0, 0x1FFF);
         stack = new MemoryBuffer(0x7F, 0xFF80, ~0);
-        raisedInterrupts = new MappableByte();
-        enabledInterrupts = new MappableByte();
+        interrupts = new InterruptController();
+        createPageTables();
         reset();
     }
 
+    private void createPageTables() {
+        readPages = new byte[256][];
+        readOffsets = new int[256];
+        writePages = new byte[256][];
+        writeOffsets = new int[256];
+        codePages = new boolean[256];
+        codeBytes = new boolean[0x2000];
+        codeGenerations = new int[0x20];
+    }
+
+    // Points a page directly at memory. A null array leaves that kind of access to dispatchAddress()
+    void mapPage(int page, byte[] readMem, byte[] writeMem, int offset) {
+        readPages[page] = readMem;
+        readOffsets[page] = offset;
+        writePages[page] = codePages[page] ? null : writeMem;
+        writeOffsets[page] = offset;
+    }
+
+    // Clears the page table entries in [firstPage, endPage)
+    void unmapPages(int firstPage, int endPage) {
+        for (int page = firstPage; page < endPage; ++page) {
+            readPages[page] = null;
+            writePages[page] = null;
+        }
+        if (firstPage < 0x80)
+            ++mappingGeneration;  // VRAM and cartridge RAM don't hold cached code
+    }
+
+    // Marks a work RAM byte as code, so that overwriting it bumps its page's code generation
+    void protectCode(char address) {
+        codeBytes[address & 0x1FFF] = true;
+        hasCode = true;
+        protectPage(address >>> 8);
+        if (address < 0xDE00)
+            protectPage((address >>> 8) + 0x20);  // Echo RAM mirror
+    }
+
+    private void protectPage(int page) {
+        codePages[page] = true;
+        writePages[page] = null;
+    }
+
+    // Forgets the code in a work RAM page (0-$1F), leaving it to be mapped for writing again
+    private void unprotectPage(int ramPage) {
+        Arrays.fill(codeBytes, ramPage << 8, (ramPage + 1) << 8, false);
+        codePages[0xC0 + ramPage] = false;
+        if (ramPage < 0x1E)
+            codePages[0xE0 + ramPage] = false;
+        ++codeGenerations[ramPage];
+    }
+
+    int getCodeGeneration(int ramPage) {
+        return codeGenerations[ramPage];
+    }
+
+    int getMappingGeneration() {
+        return mappingGeneration;
+    }
+
+    // Same as setting the interrupt's bit in $FF0F, without going through write8()
+    void raiseInterrupt(int bitmask) {
+        interrupts.raise(bitmask);
+    }
+
+    private void tryMapPage(int page, MemoryMappable region) {
+        if (region instanceof MemoryBuffer) {
+            MemoryBuffer buf = (MemoryBuffer) region;
+            int offset = ((page << 8) - buf.offset) & buf.mask;
+
+            // Only map buffers which cover the whole page
+            if (buf.enabled && offset >= 0 && offset + 0x100 <= buf.data.length)
+                mapPage(page, buf.data, buf.data, offset);
+        } else if (region instanceof MBC) {
+            ((MBC) region).mapPage(this, page);
+        } else if (region instanceof LCD.TileMemory) {
+            ((LCD.TileMemory) region).mapPage(this, page);
+        }
+    }
+
+    private MemoryMappable resolveAddress(char addr) {
+        // Slow path: find the owner of the address, and map its page for next time if possible
+        MemoryMappable region = dispatchAddress(addr);
+        int page = addr >>> 8;
+        if (page < 0xFE)
+            tryMapPage(page, region);
+        return region;
+    }
+
     private MemoryMappable dispatchAddress(char addr) {
         switch (addr & 0xF000) {
             case 0xC000:
@@ -34,7 +161,7 @@ public class MMU implements Serializable {
         if (addr == 0xFF00)
             return gb.gamepad;
         else if (addr == 0xFF0F)
-            return raisedInterrupts;
+            return interrupts;
         else if (addr == 0xFF04)
             return gb.divider;
         else if (addr >= 0xFF05 && addr <= 0xFF07)
@@ -42,22 +169,59 @@ public class MMU implements Serializable {
         else if ((addr >= 0x8000 && addr <= 0x9FFF) ||
                  (addr >= 0xFE00 & addr <= 0xFE9F) ||
                  (addr >= 0xFF40 && addr <= 0xFF4B))
-            return gb.lcd;
+            return (addr < 0xA000) ? gb.lcd.getVideoRam(addr) : gb.lcd;
         else if (addr >= 0xFF80 && addr <= 0xFFFE)
             return stack;
         else if (addr == 0xFFFF)
-            return enabledInterrupts;
+            return interrupts;
         else if (addr < 0x8000 || (addr >= 0xA000 && addr <= 0xBFFF))
             return gb.cartridge.mbc;
         return invalidMemory;
     }
 
     public char read8(char addr) {
-        return (char) (dispatchAddress(addr).read(addr) & 0xFF);
+        int page = addr >>> 8;
+        byte[] mem = readPages[page];
+        if (mem != null)
+            return (char) (mem[readOffsets[page] + (addr & 0xFF)] & 0xFF);
+        return (char) (readSlow(addr) & 0xFF);
+    }
+
+    private byte readSlow(char addr) {
+        MemoryMappable region = resolveAddress(addr);
+
+        // Clocked components have to be brought up to date before their state is read (a detached
+        // MMU, with no GameBoy, has none)
+        if (gb != null)
+            gb.scheduler.sync(region);
+        return region.read(addr);
     }
 
     public void write8(char addr, char value) {
-        dispatchAddress(addr).write(addr, (byte) value);
+        int page = addr >>> 8;
+        byte[] mem = writePages[page];
+        if (mem != null)
+            mem[writeOffsets[page] + (addr & 0xFF)] = (byte) value;
+        else
+            writeSlow(addr, (byte) value);
+    }
+
+    private void writeSlow(char addr, byte value) {
+        if (hasCode && codePages[addr >>> 8] && codeBytes[addr & 0x1FFF]) {
+            // Decoded code has been overwritten: unprotect its page until it is decoded again
+            unprotectPage((addr & 0x1FFF) >>> 8);
+            ++mappingGeneration;
+        }
+
+        MemoryMappable region = resolveAddress(addr);
+        if (region instanceof Clocked) {
+            // The write may move the component's next event
+            gb.scheduler.sync(region);
+            region.write(addr, value);
+            gb.scheduler.reschedule();
+        } else {
+            region.write(addr, value);
+        }
     }
 
     public void write16(char addr, char value) {
@@ -108,8 +272,48 @@ public class MMU implements Serializable {
         write8((char) 0xFFFF, (char) 0x00);
     }
 
+    void saveState(ByteBuffer buffer) {
+        buffer.put(workRam.data);
+        buffer.put(stack.data);
+        buffer.put(interrupts.read((char) 0xFF0F));
+        buffer.put(interrupts.read((char) 0xFFFF));
+    }
+
+    void loadState(ByteBuffer buffer) {
+        buffer.get(workRam.data);
+        buffer.get(stack.data);
+        interrupts.write((char) 0xFF0F, buffer.get());
+        interrupts.write((char) 0xFFFF, buffer.get());
+
+        // Anything decoded or mapped before may no longer hold
+        for (int page = 0; page < codeGenerations.length; ++page)
+            unprotectPage(page);
+        hasCode = false;
+        unmapPages(0, 256);
+    }
+
+    private void writeObject(ObjectOutputStream stream) throws IOException {
+        MappableByte raisedInterrupts = new MappableByte();
+        MappableByte enabledInterrupts = new MappableByte();
+        raisedInterrupts.data = interrupts.read((char) 0xFF0F);
+        enabledInterrupts.data = interrupts.read((char) 0xFFFF);
+
+        ObjectOutputStream.PutField fields = stream.putFields();
+        fields.put("workRam", workRam);
+        fields.put("stack", stack);
+        fields.put("raisedInterrupts", raisedInterrupts);
+        fields.put("enabledInterrupts", enabledInterrupts);
+        stream.writeFields();
+    }
+
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
-        stream.defaultReadObject();
+        ObjectInputStream.GetField fields = stream.readFields();
+        workRam = (MemoryBuffer) fields.get("workRam", null);
+        stack = (MemoryBuffer) fields.get("stack", null);
+        interrupts = new InterruptController();
+        interrupts.write((char) 0xFF0F, ((MappableByte) fields.get("raisedInterrupts", null)).data);
+        interrupts.write((char) 0xFFFF, ((MappableByte) fields.get("enabledInterrupts", null)).data);
+        createPageTables();
         mem8Cache = new MemoryCursor8((char)0xFF);
         mem16Cache = new MemoryCursor16((char)0xFFFF);
     }
@@ -0,0 +1,43 @@
+package creativename.gamedroid.core;
+
+/* Frames packed as the index of each pixel's shade (2 bits), 4 pixels to a byte with the first in
+   the low bits (like the palette registers). The screen only ever shows its 4 shades, so nothing
+   is lost, and a packed frame takes 1/16 of the memory the ARGB one does */
+public class PackedFrame {
+    public static final int SIZE = 160 * 144 / 4;
+
+    // Packs an ARGB frame drawn with the given shades. Pixels of any other color are packed as shade 0
+    public static void pack(int[] frame, int[] shades, byte[] packed, int offset) {
+        int lastColor = shades[0];
+        int lastShade = 0;
+        for (int i = 0; i < SIZE; ++i) {
+            int b = 0;
+            for (int j = 0; j < 4; ++j) {
+                int color = frame[i * 4 + j];
+                if (color != lastColor) {
+                    lastColor = color;
+                    lastShade = 0;
+                    for (int shade = 1; shade < 4; ++shade) {
+                        if (shades[shade] == color) {
+                            lastShade = shade;
+                            break;
+                        }
+                    }
+                }
+                b |= lastShade << (j * 2);
+            }
+            packed[offset + i] = (byte) b;
+        }
+    }
+
+    // Unpacks a frame into ARGB pixels, drawing it with the given shades
+    public static void unpack(byte[] packed, int offset, int[] shades, int[] frame) {
+        for (int i = 0; i < SIZE; ++i) {
+            int b = packed[offset + i];
+            frame[i * 4] = shades[b & 3];
+            frame[i * 4 + 1] = shades[(b >>> 2) & 3];
+            frame[i * 4 + 2] = shades[(b >>> 4) & 3];
+            frame[i * 4 + 3] = shades[(b >>> 6) & 3];
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package creativename.gamedroid.core;
+
+import java.util.Arrays;
+
+/* Keeps the clocked components (LCD, timer, etc.) in step with the CPU. Rather than advancing
+   every component after every instruction, the CPU runs until the earliest point at which a
+   component has an event due. Only then are the components brought up to date. A component is
+   also brought up to date before the CPU accesses its registers, so that it is always observed
+   in the same state as if it had been advanced after every instruction */
+public class Scheduler {
+    // Longest the CPU runs before returning to the main loop when nothing is scheduled (1 frame)
+    private static final int MAX_SLICE_CYCLES = 70224;
+
+    private final Clocked[] components;
+    private final long[] syncedAt;  // Cycle each component has been advanced to
+    private long cycles;            // Cycles elapsed before the current instruction
+    private long nextEvent;
+    private long dispatchCount;     // Number of times runDueEvents() has run
+
+    // Components are advanced in the order given
+    public Scheduler(Clocked... components) {
+        this.components = components;
+        syncedAt = new long[components.length];
+        scheduleNextEvent();
+    }
+
+    public long getCycles() {
+        return cycles;
+    }
+
+    // Cycle at which the next event is due
+    public long getNextEvent() {
+        return nextEvent;
+    }
+
+    public long getDispatchCount() {
+        return dispatchCount;
+    }
+
+    // Account for an executed instruction. Returns whether an event is now due
+    public boolean addCycles(int cycleCount) {
+        cycles += cycleCount;
+        return cycles >= nextEvent;
+    }
+
+    /* Skip ahead to the next event in steps of the given number of cycles, as if that many cycles
+       had been added at a time (e.g., while the CPU is halted and only an interrupt can wake it) */
+    public void skipToNextEvent(int step) {
+        long remaining = nextEvent - cycles;
+        if (remaining > 0)
+            cycles += (remaining + step - 1) / step * step;
+    }
+
+    // Bring every component up to date, dispatching any events that are due
+    public void runDueEvents() {
+        ++dispatchCount;
+        for (int i = 0; i < components.length; ++i)
+            advance(i);
+        scheduleNextEvent();
+    }
+
+    /* Bring a single component up to date (e.g., before one of its registers is read). Does
+       nothing if the given object isn't a scheduled component, so that the MMU can call this on
+       every I/O access without an instanceof check */
+    public void sync(Object component) {
+        for (int i = 0; i < components.length; ++i) {
+            if (components[i] == component) {
+                advance(i);
+                return;
+            }
+        }
+    }
+
+    // Bring every component up to date without counting a dispatch (e.g., before saving a state)
+    public void syncAll() {
+        for (int i = 0; i < components.length; ++i)
+            advance(i);
+        scheduleNextEvent();
+    }
+
+    // Starts counting from cycle 0 again, with every component up to date (e.g., after loading a state)
+    public void reset() {
+        cycles = 0;
+        Arrays.fill(syncedAt, 0);
+        scheduleNextEvent();
+    }
+
+    // Called after a component's state has changed in a way that may move its next event
+    public void reschedule() {
+        scheduleNextEvent();
+    }
+
+    private void advance(int i) {
+        long elapsed = cycles - syncedAt[i];
+        if (elapsed > 0) {
+            syncedAt[i] = cycles;
+            components[i].advance((int) elapsed);
+        }
+    }
+
+    private void scheduleNextEvent() {
+        nextEvent = cycles + MAX_SLICE_CYCLES;
+        for (int i = 0; i < components.length; ++i) {
+            int remaining = components[i].cyclesUntilEvent();
+            if (remaining != Clocked.NO_EVENT)
+                nextEvent = Math.min(nextEvent, syncedAt[i] + remaining);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package creativename.gamedroid.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/* Frame pixels kept in a direct buffer, ready to be uploaded as a GL_RGBA/GL_UNSIGNED_BYTE
+   texture. Only the rows that changed since the last frame are converted, and the range of
+   changed rows is tracked so that only those need to be uploaded again */
+public class TextureBuffer {
+    private final int width;
+    private final int height;
+    private final IntBuffer texels;
+    private final int[] shown;     // ARGB pixels currently in texels
+    private final int[] rowTexels; // Scratch row for conversion
+    private boolean invalid = true;  // Nothing converted yet
+    private int dirtyStart;
+    private int dirtyEnd;
+
+    public TextureBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        // Big endian, so that each int is laid out as R, G, B, A bytes on any device
+        texels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        shown = new int[width * height];
+        rowTexels = new int[width];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /* Copies the rows of an ARGB frame which differ from the last one into the buffer. Returns
+       whether any did, in which case rows getDirtyStart() (inclusive) to getDirtyEnd()
+       (exclusive) need to be uploaded */
+    public boolean update(int[] frame) {
+        if (frame.length != shown.length)
+            throw new IllegalArgumentException(String.format("Invalid frame size (%d)", frame.length));
+
+        dirtyStart = height;
+        dirtyEnd = 0;
+        for (int row = 0, ofs = 0; row < height; ++row, ofs += width) {
+            if (!invalid && rowEquals(frame, ofs))
+                continue;
+
+            for (int x = 0; x < width; ++x) {
+                int argb = frame[ofs + x];
+                rowTexels[x] = Integer.rotateLeft(argb, 8);  // ARGB -> RGBA
+            }
+            System.arraycopy(frame, ofs, shown, ofs, width);
+            texels.position(ofs);
+            texels.put(rowTexels);
+
+            if (row < dirtyStart)
+                dirtyStart = row;
+            dirtyEnd = row + 1;
+        }
+        invalid = false;
+        texels.position(0);
+        return dirtyStart < dirtyEnd;
+    }
+
+    private boolean rowEquals(int[] frame, int ofs) {
+        for (int i = ofs, end = ofs + width; i < end; ++i) {
+            if (frame[i] != shown[i])
+                return false;
+        }
+        return true;
+    }
+
+    public int getDirtyStart() {
+        return dirtyStart;
+    }
+
+    public int getDirtyEnd() {
+        return dirtyEnd;
+    }
+
+    // The whole frame, positioned at its start
+    public IntBuffer getBuffer() {
+        texels.position(0);
+        return texels;
+    }
+
+    // The rows to upload after update(), positioned at the first one
+    public IntBuffer getDirtyRows() {
+        texels.position(dirtyStart * width);
+        return texels;
+    }
+}
@@ -1,17 +1,28 @@
 package creativename.gamedroid.core;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 /* GameBoy CPU timer */
-public class Timer implements MemoryMappable, Serializable {
+public class Timer implements MemoryMappable, Clocked, Serializable {
+    // Matches the implicit UID of the original class so older save states still load
+    private static final long serialVersionUID = -4267534980892977872L;
+
+    public transient GameBoy gb;
     private char tima; // Timer counter
     private char tma;  // Timer Modulo
     private char tac;  // Timer control
     private int cycleReservoir;
 
+    static final int STATE_SIZE = 10;
+
     // Different timer frequencies
     private static final int[] reservoirCeilings = {1024, 16, 64, 256};
 
+    public Timer(GameBoy gb) {
+        this.gb = gb;
+    }
+
     /* Tell the timer that some number of cycles have passed. Returns whether the
        timer has overflowed and an interrupt should be raised */
     public boolean notifyCyclesPassed(int cycles) {
@@ -29,6 +40,35 @@ public class Timer implements MemoryMappable, Serializable {
         return false;
     }
 
+    void saveState(ByteBuffer buffer) {
+        buffer.putChar(tima);
+        buffer.putChar(tma);
+        buffer.putChar(tac);
+        buffer.putInt(cycleReservoir);
+    }
+
+    void loadState(ByteBuffer buffer) {
+        tima = buffer.getChar();
+        tma = buffer.getChar();
+        tac = buffer.getChar();
+        cycleReservoir = buffer.getInt();
+    }
+
+    @Override
+    public void advance(int cycles) {
+        if (notifyCyclesPassed(cycles)) {
+            // Timer overflowed: raise interrupt
+            gb.cpu.raiseInterrupt(CPU.Interrupt.TIMER);
+        }
+    }
+
+    @Override
+    public int cyclesUntilEvent() {
+        // Cycles until the counter overflows
+        if ((tac & 0b100) == 0) return NO_EVENT;
+        return (0x100 - tima) * reservoirCeilings[tac & 3] - cycleReservoir;
+    }
+
     @Override
     public byte read(char address) {
         if (address == 0xFF05) {
@@ -22,6 +22,7 @@ import java.io.IOException;
 import creativename.gamedroid.R;
 import creativename.gamedroid.core.Cartridge;
 import creativename.gamedroid.core.Controller;
+import creativename.gamedroid.core.FrameSkipper;
 import creativename.gamedroid.core.GameBoy;
 
 /* View for emulator rendering + gamepad UI */
@@ -53,7 +54,7 @@ public class EmulatorActivity extends Activity implements View.OnTouchListener,
             // Add the fragment
             emulator = new EmulatorFragment();
             emulator.gb = new GameBoy(screen);
-            emulator.rewindManager = new RewindManager();
+            emulator.rewindManager = new RewindManager(getRewindMemory());
             fm.beginTransaction().add(emulator, "emulator").commit();
 
             // Parse and load the ROM
@@ -137,6 +138,29 @@ public class EmulatorActivity extends Activity implements View.OnTouchListener,
         }
     }
 
+    private int getRewindMemory() {
+        // Memory budget for the rewind history (in MB)
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        int megabytes = Integer.valueOf(prefs.getString(getString(R.string.pref_rewind_memory_key), getString(R.string.pref_rewind_memory_8)));
+        return megabytes * 1024 * 1024;
+    }
+
+    private void applyCoreSettings() {
+        // Settings applied to the emulator core (once it exists)
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+
+        // Screen colors (comma-separated RGB values, lightest first)
+        String[] colors = prefs.getString(getString(R.string.pref_palette_key), getString(R.string.pref_palette_grey)).split(",");
+        int[] shades = new int[colors.length];
+        for (int i = 0; i < colors.length; ++i)
+            shades[i] = 0xFF000000 | Integer.parseInt(colors[i], 16);
+        emulator.gb.lcd.setShades(shades);
+
+        // Frame skipping (1: draw every frame, 0: adaptive)
+        int frameSkip = Integer.valueOf(prefs.getString(getString(R.string.pref_frameskip_key), getString(R.string.pref_frameskip_off)));
+        emulator.gb.lcd.setFrameSkipper((frameSkip == 1) ? null : new FrameSkipper(frameSkip));
+    }
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -145,6 +169,7 @@ public class EmulatorActivity extends Activity implements View.OnTouchListener,
 
         applyUserSettings();
         initEmulator();
+        applyCoreSettings();
 
         // Set up listeners
         findViewById(R.id.controller_dpad).setOnTouchListener(this);
@@ -3,7 +3,7 @@ package creativename.gamedroid.ui;
 import android.app.Fragment;
 import android.os.Bundle;
 
-import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 
 import creativename.gamedroid.core.GameBoy;
 
@@ -54,12 +54,11 @@ public class EmulatorFragment extends Fragment {
             rewindThread = new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    RewindPoint rewindPoint = rewindManager.rewind(screen);
+                    byte[] state = rewindManager.rewind(gb, screen);
 
-                    if (rewindPoint != null) {
-                        ByteArrayInputStream state = new ByteArrayInputStream(rewindPoint.saveState);
+                    if (state != null) {
                         try {
-                            gb.loadState(state);
+                            gb.loadState(ByteBuffer.wrap(state));
                         } catch (Exception e) {
                             e.printStackTrace();
                         }
@@ -80,4 +79,13 @@ public class EmulatorFragment extends Fragment {
         // Retain this fragment across activity restarts
         setRetainInstance(true);
     }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        // The fragment is retained across restarts, so this is only once the game is closed
+        if (rewindManager != null)
+            rewindManager.shutdown();
+    }
 }
\ No newline at end of file
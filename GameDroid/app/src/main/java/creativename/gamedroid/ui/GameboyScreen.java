@@ -1,10 +1,8 @@
 package creativename.gamedroid.ui;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.opengl.GLES10;
 import android.opengl.GLSurfaceView;
-import android.opengl.GLUtils;
 import android.os.SystemClock;
 import android.util.AttributeSet;
 
@@ -15,14 +13,14 @@ import java.nio.FloatBuffer;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-
+import creativename.gamedroid.core.FrameExchange;
+import creativename.gamedroid.core.FrameSkipListener;
 import creativename.gamedroid.core.GameBoy;
 import creativename.gamedroid.core.RenderTarget;
+import creativename.gamedroid.core.TextureBuffer;
 
 /* OpenGL surface for rendering the GameBoy's screen */
-public class GameboyScreen extends GLSurfaceView implements GLSurfaceView.Renderer, RenderTarget {
+public class GameboyScreen extends GLSurfaceView implements GLSurfaceView.Renderer, RenderTarget, FrameSkipListener {
     private static final float[] vertices = {
         -1f, -1f,  // Bottom left
         -1f, 1f,   // Top left
@@ -40,17 +38,32 @@ public class GameboyScreen extends GLSurfaceView implements GLSurfaceView.Render
         0, 2, 3   // Second triangle
     };
 
+    private static final int STALL_WINDOW_FRAMES = 600;
+
     private ByteBuffer indicesBuffer;
     private int[] textures;  // Texture handles
-    private Bitmap frame;
     private GameBoy gb;
     private RewindManager rewindManager;
     private long lastRenderTimeMs;
     private long msPerFrame;
 
+    /* Frames go from the emulation thread to the GL thread through the exchange, so neither
+       ever waits on the other. The GL thread copies the rows that changed into the texture buffer
+       and uploads only those. Frames shown while rewinding come through the exchange too, from
+       the rewind thread (which only runs while emulation is stopped) */
+    private FrameExchange frames;
+    private TextureBuffer texture;  // GL thread only
+
+    /* Time the emulation thread spends in frameReady() (handing off the frame and capturing a
+       rewind point), not counting frame rate limiting, averaged over windows of frames */
+    private long stallNs;
+    private int stallFrames;
+    private volatile long stallMicros;
+
     private void initScreen() {
         textures = new int[1];
-        frame = Bitmap.createBitmap(160, 144, Bitmap.Config.ARGB_8888);
+        frames = new FrameExchange(160 * 144);
+        texture = new TextureBuffer(160, 144);
 
         // Only render when there's a change
         setRenderer(this);
@@ -81,40 +94,70 @@ public class GameboyScreen extends GLSurfaceView implements GLSurfaceView.Render
 
     @Override
     public void frameReady(int[] newFrame) {
-        frame.setPixels(newFrame, 0, 160, 0, 0, 160, 144);
+        long start = System.nanoTime();
+
+        // Hand the frame to the GL thread
+        System.arraycopy(newFrame, 0, frames.getBackBuffer(), 0, newFrame.length);
+        frames.publish();
+        requestRender();
 
         // Add rewind point for this frame
-        ByteArrayOutputStream saveStateStream = new ByteArrayOutputStream();
-        try {
-            gb.saveState(saveStateStream);
-        } catch (IOException e) {
-            // Should never happen since this is an in-memory stream
-            e.printStackTrace();
-            return;
+        rewindManager.captureRewindPoint(gb, newFrame);
+
+        recordStall(System.nanoTime() - start);
+        limitFrameRate();
+    }
+
+    private void recordStall(long ns) {
+        stallNs += ns;
+        if (++stallFrames == STALL_WINDOW_FRAMES) {
+            stallMicros = stallNs / 1000 / stallFrames;
+            stallNs = 0;
+            stallFrames = 0;
         }
-        rewindManager.addRewindPoint(saveStateStream.toByteArray(), frame);
+    }
 
+    // Microseconds per frame the emulation thread spent in frameReady(), over the last full window
+    public long getStallMicros() {
+        return stallMicros;
+    }
+
+    @Override
+    public void frameSkipped() {
+        // Nothing to show, but emulation still has to be held to the frame rate
+        limitFrameRate();
+    }
+
+    private void limitFrameRate() {
         if (msPerFrame > 0) {
-            // Limit framerate
             long dt = SystemClock.uptimeMillis() - lastRenderTimeMs;
             if (dt < msPerFrame) {
                 SystemClock.sleep(msPerFrame - dt);
             }
         }
-
-        requestRender();
         lastRenderTimeMs = SystemClock.uptimeMillis();
     }
 
-    public void renderBitmap(Bitmap bmp) {
-        frame = bmp;
+    // Shows a frame from outside emulation (i.e., while rewinding)
+    public void renderFrame(int[] frame) {
+        System.arraycopy(frame, 0, frames.getBackBuffer(), 0, frame.length);
+        frames.publish();
         requestRender();
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        // Take the newest frame (redraw the last one if there is none)
+        int[] newest = frames.acquire();
+
+        // Upload the rows that changed
+        if (newest != null && texture.update(newest)) {
+            gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, texture.getDirtyStart(), texture.getWidth(),
+                    texture.getDirtyEnd() - texture.getDirtyStart(), GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE,
+                    texture.getDirtyRows());
+        }
+
         // Render full screen quad textured with the image for this frame
-        GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, frame, 0);
         gl.glDrawElements(GLES10.GL_TRIANGLE_STRIP, indicesBuffer.capacity(), GLES10.GL_UNSIGNED_BYTE, indicesBuffer);
     }
 
@@ -151,6 +194,9 @@ public class GameboyScreen extends GLSurfaceView implements GLSurfaceView.Render
         gl.glGenTextures(1, textures, 0);
         gl.glTexParameterf(GLES10.GL_TEXTURE_2D, GLES10.GL_TEXTURE_MIN_FILTER, GLES10.GL_NEAREST);
         gl.glTexParameterf(GLES10.GL_TEXTURE_2D, GLES10.GL_TEXTURE_MAG_FILTER, GLES10.GL_NEAREST);
+        // The buffer still holds the last frame if this is a new context after the old one was lost
+        gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, texture.getWidth(), texture.getHeight(), 0,
+                GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, texture.getBuffer());
 
         // Set the background frame color
         gl.glClearColor(1f, 1.0f, 1f, 1f);
@@ -0,0 +1,257 @@
+package creativename.gamedroid.ui;
+
+import java.util.Arrays;
+
+/* History of save states, kept in a preallocated byte arena. Every keyframeInterval-th state is
+   stored in full (a keyframe); the ones in between are stored as the XOR of the state with the one
+   before it. Either is run-length encoded, so the bytes which didn't change cost next to nothing.
+
+   The newest state is also kept decoded, so that stepping back is a matter of XORing the newest
+   delta back out of it. Only stepping back past a keyframe means decoding the group before it
+   (its keyframe and deltas) again. The oldest points are dropped to make room for new ones, a
+   group at a time (deltas are no use without their keyframe). If there is a coarser buffer set,
+   the dropped points it keeps (every step-th by sequence number) are pushed to it on the way out */
+public class RewindBuffer {
+    private static final int MIN_ZERO_RUN = 4;  // Shorter runs of unchanged bytes are left in literals
+
+    private final int stateSize;
+    private final int keyframeInterval;
+    private final byte[] arena;
+    private final byte[] encoded;  // Scratch for encoding a state before it is copied into the arena
+    private final byte[] current;  // Newest state
+    private final byte[] zeroes;   // What keyframes are encoded against
+    private byte[] dropped;        // Oldest state, rebuilt while its group is being dropped
+    private RewindBuffer coarser;
+    private int coarserStep;
+    private int nextSequence;
+
+    // Points, oldest first, in a ring of metadata
+    private final int[] offsets;
+    private final int[] stateLengths;
+    private final int[] sequences;
+    private final boolean[] keyframes;
+    private int first, count;
+    private int writePos;       // Where the next point goes in the arena
+    private int sinceKeyframe;  // Deltas stored after the newest keyframe
+
+    public RewindBuffer(int stateSize, int capacityBytes, int keyframeInterval, int maxPoints) {
+        if (keyframeInterval < 1)
+            throw new IllegalArgumentException(String.format("Invalid keyframe interval (%d)", keyframeInterval));
+        this.stateSize = stateSize;
+        this.keyframeInterval = keyframeInterval;
+        arena = new byte[capacityBytes];
+
+        // Worst case: a literal per 4 unchanged bytes, with a 3-byte length either side of it
+        encoded = new byte[stateSize * 3 + 16];
+        current = new byte[stateSize];
+        zeroes = new byte[stateSize];
+        offsets = new int[maxPoints];
+        stateLengths = new int[maxPoints];
+        sequences = new int[maxPoints];
+        keyframes = new boolean[maxPoints];
+    }
+
+    // Passes the points with a sequence number divisible by step on to buffer when they are dropped
+    public void setCoarser(RewindBuffer buffer, int step) {
+        if (step < 1)
+            throw new IllegalArgumentException(String.format("Invalid step (%d)", step));
+        if (buffer != null && buffer.stateSize != stateSize)
+            throw new IllegalArgumentException(String.format("Invalid state size (%d)", buffer.stateSize));
+        coarser = buffer;
+        coarserStep = step;
+        if (dropped == null)
+            dropped = new byte[stateSize];
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public int getCapacity() {
+        return arena.length;
+    }
+
+    // Arena bytes taken up by the stored points
+    public int getUsedBytes() {
+        int used = 0;
+        for (int i = 0; i < count; ++i) {
+            int index = indexOf(i);
+            used += stateLengths[index];
+        }
+        return used;
+    }
+
+    public void clear() {
+        count = 0;
+        writePos = 0;
+    }
+
+    // Adds the newest point
+    public void push(byte[] state) {
+        push(state, nextSequence);
+    }
+
+    // As above, numbering the point explicitly (points pushed after it are numbered on from it)
+    public void push(byte[] state, int sequence) {
+        if (state.length != stateSize)
+            throw new IllegalArgumentException(String.format("Invalid state size (%d)", state.length));
+
+        boolean keyframe = (count == 0 || sinceKeyframe + 1 >= keyframeInterval);
+        int stateLength = encode(state, keyframe ? zeroes : current);
+        if (!reserve(stateLength))
+            return;  // Doesn't fit at all
+        if (!keyframe && count == 0) {
+            // Making room dropped the state this was a delta of
+            keyframe = true;
+            stateLength = encode(state, zeroes);
+            if (!reserve(stateLength))
+                return;
+        }
+
+        System.arraycopy(encoded, 0, arena, writePos, stateLength);
+        int index = indexOf(count++);
+        offsets[index] = writePos;
+        stateLengths[index] = stateLength;
+        sequences[index] = sequence;
+        keyframes[index] = keyframe;
+        writePos += stateLength;
+        System.arraycopy(state, 0, current, 0, stateSize);
+        sinceKeyframe = keyframe ? 0 : sinceKeyframe + 1;
+        nextSequence = sequence + 1;
+    }
+
+    // Removes the newest point, copying its state out. Returns false if there are no points left
+    public boolean pop(byte[] state) {
+        if (count == 0)
+            return false;
+
+        int index = indexOf(count - 1);
+        System.arraycopy(current, 0, state, 0, stateSize);
+        --count;
+        writePos = offsets[index];
+        nextSequence = sequences[index];
+
+        if (!keyframes[index]) {
+            // XOR the change back out to get the state before
+            decode(current, offsets[index], stateLengths[index]);
+            --sinceKeyframe;
+        } else if (count > 0) {
+            // Rebuild the state before from its own keyframe
+            int keyframe = count - 1;
+            while (!keyframes[indexOf(keyframe)])
+                --keyframe;
+            Arrays.fill(current, (byte) 0);
+            for (int i = keyframe; i < count; ++i)
+                decode(current, offsets[indexOf(i)], stateLengths[indexOf(i)]);
+            sinceKeyframe = count - 1 - keyframe;
+        }
+        return true;
+    }
+
+    private int indexOf(int i) {
+        return (first + i) % offsets.length;
+    }
+
+    // Makes room for a point of the given length at writePos, dropping the oldest points as needed
+    private boolean reserve(int length) {
+        if (length > arena.length)
+            return false;
+        if (writePos + length > arena.length) {
+            // Wrap around, dropping the points between here and the end (the oldest ones)
+            while (count > 0 && offsets[first] >= writePos)
+                dropOldest();
+            writePos = 0;
+        }
+        while (count > 0 && (count == offsets.length || overlapsOldest(length)))
+            dropOldest();
+        return true;
+    }
+
+    private boolean overlapsOldest(int length) {
+        int start = offsets[first];
+        int end = start + stateLengths[first];
+        return start < writePos + length && writePos < end;
+    }
+
+    private void dropOldest() {
+        // Deltas left without their keyframe go as well
+        do {
+            if (coarser != null) {
+                // The arena still holds the group, so its states can be rebuilt in order
+                if (keyframes[first])
+                    Arrays.fill(dropped, (byte) 0);
+                decode(dropped, offsets[first], stateLengths[first]);
+                if (sequences[first] % coarserStep == 0)
+                    coarser.push(dropped, sequences[first]);
+            }
+            first = (first + 1) % offsets.length;
+            --count;
+        } while (count > 0 && !keyframes[first]);
+    }
+
+    /* Run-length encodes state XOR base into encoded, as (unchanged byte count, changed byte
+       count, changed bytes XOR base) runs. Returns the encoded length */
+    private int encode(byte[] state, byte[] base) {
+        int out = 0;
+        int i = 0;
+        while (i < stateSize) {
+            int start = i;
+            while (i < stateSize && state[i] == base[i])
+                ++i;
+            if (i == stateSize)
+                break;
+
+            // Changed bytes, up to the next run of unchanged ones long enough to be worth a new run
+            int literalEnd = i;
+            for (int j = i; j < stateSize && j - literalEnd < MIN_ZERO_RUN; ++j) {
+                if (state[j] != base[j])
+                    literalEnd = j + 1;
+            }
+            out = putLength(out, i - start);
+            out = putLength(out, literalEnd - i);
+            for (; i < literalEnd; ++i)
+                encoded[out++] = (byte) (state[i] ^ base[i]);
+        }
+        return out;
+    }
+
+    // XORs an encoded state from the arena into target
+    private void decode(byte[] target, int offset, int length) {
+        int end = offset + length;
+        int pos = 0;
+        while (offset < end) {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = arena[offset++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            pos += value;
+
+            int literals = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = arena[offset++];
+                literals |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            for (int i = 0; i < literals; ++i)
+                target[pos++] ^= arena[offset++];
+        }
+    }
+
+    // Stores a length 7 bits at a time, low bits first, with the top bit set on all but the last byte
+    private int putLength(int out, int value) {
+        while (value >= 0x80) {
+            encoded[out++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        encoded[out++] = (byte) value;
+        return out;
+    }
+}
@@ -0,0 +1,78 @@
+package creativename.gamedroid.ui;
+
+/* Rewind history within a fixed memory budget, thinned out the further back it goes. The budget is
+   split evenly between a few tiers of rewind buffers: the first keeps every point, and each tier
+   after it keeps every other point of the one before it. Points dropped from one tier to make room
+   move on to the next, and are only gone once the last tier drops them. So the last few seconds can
+   be stepped back through a frame at a time, and the same memory reaches 2^tiers - 1 times as far
+   back as keeping every point would */
+public class RewindHistory {
+    /* Arena bytes per point the point tables are sized for. Points are usually bigger than this
+       (even a delta where little changed takes ~150 bytes), and a tier with its tables full drops
+       points like one with its arena full */
+    private static final int MIN_POINT_BYTES = 128;
+    private static final int POINT_TABLE_BYTES = 13;  // Table bytes per point
+
+    private final RewindBuffer[] tiers;
+
+    public RewindHistory(int stateSize, int memoryBytes, int keyframeInterval, int tierCount) {
+        if (tierCount < 1)
+            throw new IllegalArgumentException(String.format("Invalid tier count (%d)", tierCount));
+
+        // Each tier's share of the budget covers both its arena and its point tables
+        int tierBytes = memoryBytes / tierCount;
+        int maxPoints = tierBytes / (MIN_POINT_BYTES + POINT_TABLE_BYTES);
+        if (maxPoints < 1)
+            throw new IllegalArgumentException(String.format("Invalid memory budget (%d bytes)", memoryBytes));
+        tiers = new RewindBuffer[tierCount];
+        for (int i = 0; i < tierCount; ++i) {
+            tiers[i] = new RewindBuffer(stateSize, tierBytes - maxPoints * POINT_TABLE_BYTES, keyframeInterval, maxPoints);
+            if (i > 0)
+                tiers[i - 1].setCoarser(tiers[i], 1 << i);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (RewindBuffer tier : tiers)
+            size += tier.size();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    // Points pushed since the oldest one still kept (i.e., how far back the history reaches)
+    public int getSpan() {
+        int span = 0;
+        for (int i = 0; i < tiers.length; ++i)
+            span += tiers[i].size() << i;
+        return span;
+    }
+
+    public int getUsedBytes() {
+        int used = 0;
+        for (RewindBuffer tier : tiers)
+            used += tier.getUsedBytes();
+        return used;
+    }
+
+    public void clear() {
+        for (RewindBuffer tier : tiers)
+            tier.clear();
+    }
+
+    public void push(byte[] state) {
+        tiers[0].push(state);
+    }
+
+    // Same as RewindBuffer.pop(): the finest tier with points left holds the newest one
+    public boolean pop(byte[] state) {
+        for (RewindBuffer tier : tiers) {
+            if (!tier.isEmpty())
+                return tier.pop(state);
+        }
+        return false;
+    }
+}
@@ -1,40 +1,102 @@
 package creativename.gamedroid.ui;
 
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.SystemClock;
 
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-/* Rewind state tracker */
+import creativename.gamedroid.core.GameBoy;
+import creativename.gamedroid.core.PackedFrame;
+
+/* Rewind state tracker. Capturing a rewind point on the emulation thread only copies the state
+   and frame into a free snapshot; packing and storing them happens on a worker thread. If the
+   worker falls behind and no snapshot is free, the point is dropped instead of holding up
+   emulation. The worker runs until shutdown() is called. The history is kept within a memory
+   budget, thinned out the further back it goes.
+
+   Each point is the save state followed by its frame, packed as shade indices. Storing them
+   together means the frame is delta encoded along with the state, so a frame costs next to
+   nothing unless the screen actually changed */
 public class RewindManager {
+    public static final int DEFAULT_MEMORY_BYTES = 8 * 1024 * 1024;
+    private static final int KEYFRAME_INTERVAL = 60;    // A full state every 60 points
+    private static final int TIERS = 4;                 // Every frame, then every 2nd, 4th and 8th
+    private static final int POINT_SIZE = GameBoy.STATE_SIZE + PackedFrame.SIZE;
+    private static final int SNAPSHOTS = 8;
+
     private AtomicBoolean rewinding;
-    private RingBuffer<RewindPoint> rewindBuffer;
+    private RewindHistory rewindHistory;
+    private byte[] point;             // State and packed frame of the point being rewound to
+    private int[] frame;              // Frame of that point
+
+    // Capture (the worker's fields are only touched by the worker)
+    private SnapshotQueue snapshots;
+    private Thread worker;
+    private volatile int generation;  // Changes on reset(), so that older snapshots are discarded
+    private long droppedPoints;       // Emulation thread only
+    private volatile boolean shutDown;
+    private final ReentrantLock drainLock = new ReentrantLock();
+    private final Condition drained = drainLock.newCondition();  // Signalled once no snapshots are left
 
     public RewindManager() {
-        // 30 seconds x 60fps = 1800 frames
-        rewindBuffer = new RingBuffer<>(1800);
+        this(DEFAULT_MEMORY_BYTES);
+    }
+
+    public RewindManager(int memoryBytes) {
+        rewindHistory = new RewindHistory(POINT_SIZE, memoryBytes, KEYFRAME_INTERVAL, TIERS);
         rewinding = new AtomicBoolean(false);
+        point = new byte[POINT_SIZE];
+        frame = new int[160 * 144];
+
+        snapshots = new SnapshotQueue(SNAPSHOTS, POINT_SIZE, 160 * 144);
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                storeSnapshots();
+            }
+        }, "Rewind capture");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
     }
 
-    public RewindPoint rewind(GameboyScreen screen) {
-        // Rewinds through the states until aborted
-        RewindPoint rewindPoint = null;
-        BitmapFactory.Options opt = new BitmapFactory.Options();
-        opt.inMutable = true;
+    /* Rewinds through the states until aborted, showing their frames in the GameBoy's current
+       shades. Returns the state rewound to (followed by its packed frame), or null if none */
+    public byte[] rewind(GameBoy gb, GameboyScreen screen) {
+        // Emulation has stopped, so once the worker has caught up the history is complete
+        drainLock.lock();
+        try {
+            while (!snapshots.isEmpty() && !shutDown)
+                drained.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            drainLock.unlock();
+        }
+
+        boolean rewound = false;
+        int[] shades = gb.lcd.getShades();
         while (rewinding.get()) {
-            if (!rewindBuffer.isEmpty()) {
-                rewindPoint = rewindBuffer.pop();
-                Bitmap savedFrame = BitmapFactory.decodeByteArray(rewindPoint.renderedFrame, 0, rewindPoint.renderedFrame.length, opt);
-                screen.renderBitmap(savedFrame);
+            if (popRewindPoint()) {
+                rewound = true;
+                PackedFrame.unpack(point, GameBoy.STATE_SIZE, shades, frame);
+                screen.renderFrame(frame);
             }
             SystemClock.sleep(16);  // ~60fps
         }
-        return rewindPoint;
+        return rewound ? point : null;
+    }
+
+    private synchronized boolean popRewindPoint() {
+        return rewindHistory.pop(point);
     }
 
     public synchronized void startRewinding() {
-        if (!rewindBuffer.isEmpty()) {
+        // Points may still be waiting for the worker, so there may be history even if none is stored yet
+        if (!rewindHistory.isEmpty() || !snapshots.isEmpty()) {
             rewinding.set(true);
         }
     }
@@ -46,12 +108,70 @@ public class RewindManager {
     }
 
     public synchronized void reset() {
-        rewindBuffer.clear();
+        ++generation;
+        rewindHistory.clear();
+    }
+
+    // Stops the worker thread for good (once the game is closed), so that the history can be freed
+    public void shutdown() {
+        shutDown = true;
+        worker.interrupt();
+        signalDrained();
     }
 
-    public synchronized void addRewindPoint(byte[] saveState, Bitmap renderedFrame) {
-        if (!rewinding.get()) {
-            rewindBuffer.push(new RewindPoint(saveState, renderedFrame));
+    private void signalDrained() {
+        drainLock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            drainLock.unlock();
         }
     }
+
+    // Points which couldn't be captured because the worker had fallen behind
+    public long getDroppedPoints() {
+        return droppedPoints;
+    }
+
+    // Called from the emulation thread once a frame is complete
+    public void captureRewindPoint(GameBoy gb, int[] renderedFrame) {
+        if (rewinding.get())
+            return;
+        SnapshotQueue.Snapshot snapshot = snapshots.claim();
+        if (snapshot == null) {
+            ++droppedPoints;
+            return;
+        }
+
+        snapshot.stateBuffer.clear();
+        gb.saveState(snapshot.stateBuffer);
+        System.arraycopy(renderedFrame, 0, snapshot.frame, 0, snapshot.frame.length);
+        gb.lcd.getShades(snapshot.shades);
+        snapshot.generation = generation;
+        snapshots.publish();
+        LockSupport.unpark(worker);
+    }
+
+    private void storeSnapshots() {
+        while (!shutDown) {
+            SnapshotQueue.Snapshot snapshot = snapshots.peek();
+            if (snapshot == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            if (snapshot.generation == generation) {
+                PackedFrame.pack(snapshot.frame, snapshot.shades, snapshot.state, GameBoy.STATE_SIZE);
+                addRewindPoint(snapshot);
+            }
+            snapshots.release();
+            if (snapshots.isEmpty())
+                signalDrained();
+        }
+    }
+
+    private synchronized void addRewindPoint(SnapshotQueue.Snapshot snapshot) {
+        if (snapshot.generation == generation)
+            rewindHistory.push(snapshot.state);
+    }
 }
@@ -0,0 +1,66 @@
+package creativename.gamedroid.ui;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Bounded, lock-free queue of snapshots (a save state, and a frame with the shades it was drawn
+   in) from one producer thread to one consumer thread. The snapshots are allocated up front and
+   reused: the producer claims the next free one, fills it and publishes it, and the consumer
+   releases it once it is done with it. When every snapshot is in use, claim() fails rather than
+   waiting, so the producer never stalls */
+public class SnapshotQueue {
+    public static class Snapshot {
+        public final byte[] state;
+        public final ByteBuffer stateBuffer;  // Wraps state
+        public final int[] frame;
+        public final int[] shades;
+        public int generation;
+
+        Snapshot(int stateSize, int frameSize) {
+            state = new byte[stateSize];
+            stateBuffer = ByteBuffer.wrap(state);
+            frame = new int[frameSize];
+            shades = new int[4];
+        }
+    }
+
+    private final Snapshot[] snapshots;
+    private final AtomicLong head = new AtomicLong();  // Next to consume (written by the consumer)
+    private final AtomicLong tail = new AtomicLong();  // Next to fill (written by the producer)
+
+    public SnapshotQueue(int capacity, int stateSize, int frameSize) {
+        snapshots = new Snapshot[capacity];
+        for (int i = 0; i < capacity; ++i)
+            snapshots[i] = new Snapshot(stateSize, frameSize);
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    // Producer: the snapshot to fill next, or null if the consumer hasn't freed any up
+    public Snapshot claim() {
+        long t = tail.get();
+        if (t - head.get() == snapshots.length)
+            return null;
+        return snapshots[(int) (t % snapshots.length)];
+    }
+
+    // Producer: hands the claimed snapshot over to the consumer
+    public void publish() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    // Consumer: the oldest published snapshot, or null if there is none
+    public Snapshot peek() {
+        long h = head.get();
+        if (h == tail.get())
+            return null;
+        return snapshots[(int) (h % snapshots.length)];
+    }
+
+    // Consumer: frees the snapshot returned by peek() for reuse
+    public void release() {
+        head.lazySet(head.get() + 1);
+    }
+}
@@ -1189,6 +1189,34 @@ public class CPUTest {
         assertEquals(0x3E, gb.cpu.a.read());
         assertEquals(0x01, gb.cpu.d.read());
     }
+
+    @Test
+    public void interruptPriority() throws Exception {
+        GameBoy gb = new GameBoy();
+        gb.mmu = new FixtureMMU(new int[]{
+            0x3E, 0x1F,       // LD A,$1F
+            0xE0, 0xFF,       // LDH ($FF),A
+            0xFB,             // EI
+            0x00              // NOP
+        }) {
+            @Override
+            public char read8(char address) {
+                // The interrupt vectors hold NOPs
+                return (address < 0x100) ? 0 : super.read8(address);
+            }
+        };
+        for (int i = 0; i < 4; ++i)
+            gb.cpu.execInstruction();
+        gb.cpu.raiseInterrupt(CPU.Interrupt.TIMER);
+        gb.cpu.raiseInterrupt(CPU.Interrupt.LCD);
+        assertEquals(0x06, gb.mmu.read8((char) 0xFF0F));
+
+        // LCD interrupt comes first, and only its flag is cleared
+        gb.cpu.execInstruction();
+        assertEquals(0x49, gb.cpu.pc.read());
+        assertEquals(0x106, gb.mmu.read16(gb.cpu.sp.read()));
+        assertEquals(0x04, gb.mmu.read8((char) 0xFF0F));
+    }
 }
 
  class FixtureMMU extends MMU {
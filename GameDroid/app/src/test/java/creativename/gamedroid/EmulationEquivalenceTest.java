@@ -0,0 +1,98 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import creativename.gamedroid.core.CPU;
+import creativename.gamedroid.core.FrameSkipListener;
+import creativename.gamedroid.core.FrameSkipper;
+import creativename.gamedroid.core.GameBoy;
+import creativename.gamedroid.core.RenderTarget;
+
+/* Runs the bundled test ROMs with each interpreter core and speed-up, and checks that they produce
+   exactly the same frames as the switch-dispatch core does without them */
+public class EmulationEquivalenceTest {
+    private static final String ROM_PATH = "../test-roms/cpu_instrs/cpu_instrs.gb";
+    private static final String IDLE_ROM_PATH = "../test-roms/instr_timing/instr_timing.gb";  // Polls LY
+    private static final int FRAMES = 600;
+
+    // Keeps the last frame drawn, counting skipped frames towards the limit
+    private static class LastFrame implements RenderTarget, FrameSkipListener {
+        final GameBoy gb;
+        final int frameLimit;
+        int frames;
+        final int[] frame = new int[160 * 144];
+        int frameNumber;  // Frames counted up to and including frame
+
+        LastFrame(GameBoy gb, int frameLimit) {
+            this.gb = gb;
+            this.frameLimit = frameLimit;
+        }
+
+        @Override
+        public void frameReady(int[] frameBuffer) {
+            System.arraycopy(frameBuffer, 0, frame, 0, frame.length);
+            frameNumber = ++frames;
+            if (frames >= frameLimit)
+                gb.terminate();
+        }
+
+        @Override
+        public void frameSkipped() {
+            if (++frames >= frameLimit)
+                gb.terminate();
+        }
+    }
+
+    private static long switchCoreHash(String romPath) throws Exception {
+        return FrameHasher.hashFrames(FrameHasher.loadRom(romPath, CPU.ExecutionMode.SWITCH_DISPATCH), FRAMES);
+    }
+
+    @Test
+    public void interpreterCores() throws Exception {
+        GameBoy table = FrameHasher.loadRom(ROM_PATH, CPU.ExecutionMode.TABLE_DRIVEN);
+        assertEquals(switchCoreHash(ROM_PATH), FrameHasher.hashFrames(table, FRAMES));
+    }
+
+    @Test
+    public void lazyFlags() throws Exception {
+        GameBoy eager = FrameHasher.loadRom(ROM_PATH, CPU.ExecutionMode.SWITCH_DISPATCH);
+        eager.cpu.setLazyFlags(false);
+        assertEquals(switchCoreHash(ROM_PATH), FrameHasher.hashFrames(eager, FRAMES));
+    }
+
+    @Test
+    public void blockCache() throws Exception {
+        GameBoy cached = FrameHasher.loadRom(ROM_PATH, CPU.ExecutionMode.BLOCK_CACHE);
+        assertEquals(switchCoreHash(ROM_PATH), FrameHasher.hashFrames(cached, FRAMES));
+    }
+
+    @Test
+    public void frameSkipping() throws Exception {
+        GameBoy skipping = FrameHasher.loadRom(ROM_PATH, CPU.ExecutionMode.SWITCH_DISPATCH);
+        skipping.lcd.setFrameSkipper(new FrameSkipper(4));
+        LastFrame skipped = new LastFrame(skipping, FRAMES);
+        skipping.renderTarget = skipped;
+        skipping.run();
+
+        // The last frame drawn matches the same frame with nothing skipped
+        GameBoy drawing = FrameHasher.loadRom(ROM_PATH, CPU.ExecutionMode.SWITCH_DISPATCH);
+        LastFrame drawn = new LastFrame(drawing, skipped.frameNumber);
+        drawing.renderTarget = drawn;
+        drawing.run();
+        assertArrayEquals(drawn.frame, skipped.frame);
+    }
+
+    @Test
+    public void idleLoopSkipping() throws Exception {
+        GameBoy polling = FrameHasher.loadRom(IDLE_ROM_PATH, CPU.ExecutionMode.SWITCH_DISPATCH);
+        polling.cpu.setIdleLoopSkipping(false);
+        GameBoy skipping = FrameHasher.loadRom(IDLE_ROM_PATH, CPU.ExecutionMode.SWITCH_DISPATCH);
+        assertEquals(FrameHasher.hashFrames(polling, FRAMES), FrameHasher.hashFrames(skipping, FRAMES));
+        assertEquals(0, polling.cpu.getIdleCyclesSkipped());
+        assertTrue(skipping.cpu.getIdleCyclesSkipped() > 0);
+
+        skipping.cpu.resetIdleCyclesSkipped();
+        assertEquals(0, skipping.cpu.getIdleCyclesSkipped());
+    }
+}
@@ -0,0 +1,203 @@
+package creativename.gamedroid;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.IOException;
+
+import creativename.gamedroid.core.BlockCache;
+import creativename.gamedroid.core.CPU;
+import creativename.gamedroid.core.FrameSkipListener;
+import creativename.gamedroid.core.FrameSkipper;
+import creativename.gamedroid.core.GameBoy;
+import creativename.gamedroid.core.LCD;
+import creativename.gamedroid.core.MBC;
+import creativename.gamedroid.core.RenderTarget;
+
+/* Throughput measurements on the bundled test ROMs. Results are printed rather than asserted
+   since they depend on the machine running the tests, and they take a while, so they are only
+   run when asked for (./gradlew test -Dgamedroid.benchmark=true). EmulationEquivalenceTest checks
+   that the configurations measured here all produce the same frames */
+public class EmulatorBenchmarkTest {
+    private static final String BENCHMARK_ROM = "../test-roms/cpu_instrs/cpu_instrs.gb";
+    private static final String IDLE_BENCHMARK_ROM = "../test-roms/instr_timing/instr_timing.gb";  // Polls LY
+    private static final int BENCHMARK_FRAMES = 1200;
+    private static final int ROUNDS = 3;
+    private static final int CYCLES_PER_FRAME = 70224;
+
+    // Creates the GameBoy for one round of a benchmark
+    private interface Setup {
+        GameBoy create() throws IOException;
+    }
+
+    private static class FrameCounter implements RenderTarget, FrameSkipListener {
+        final GameBoy gb;
+        int frames;
+
+        FrameCounter(GameBoy gb) {
+            this.gb = gb;
+        }
+
+        @Override
+        public void frameReady(int[] frameBuffer) {
+            if (++frames >= BENCHMARK_FRAMES)
+                gb.terminate();
+        }
+
+        @Override
+        public void frameSkipped() {
+            if (++frames >= BENCHMARK_FRAMES)
+                gb.terminate();
+        }
+    }
+
+    @Before
+    public void requireBenchmarks() {
+        assumeTrue(Boolean.getBoolean("gamedroid.benchmark"));
+    }
+
+    private static Setup rom(final String path, final CPU.ExecutionMode mode) {
+        return new Setup() {
+            @Override
+            public GameBoy create() throws IOException {
+                return FrameHasher.loadRom(path, mode);
+            }
+        };
+    }
+
+    /* Runs the benchmark frames and prints the time taken. Best of several rounds, so that the
+       measurement isn't dominated by JIT warm-up. Returns the GameBoy of the last round */
+    private static GameBoy run(Setup setup, String label) throws IOException {
+        GameBoy gb = null;
+        long elapsed = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; ++round) {
+            gb = setup.create();
+            gb.renderTarget = new FrameCounter(gb);
+            long start = System.nanoTime();
+            gb.run();
+            elapsed = Math.min(elapsed, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("%s: %d instructions in %d ms (%.2f MIPS)", label,
+                gb.cpu.instructionCount, elapsed / 1000000, gb.cpu.instructionCount * 1000.0 / elapsed));
+        return gb;
+    }
+
+    @Test
+    public void interpreterCores() throws Exception {
+        run(rom(BENCHMARK_ROM, CPU.ExecutionMode.TABLE_DRIVEN), "Table-driven core");
+        run(rom(BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH), "Switch-dispatch core");
+    }
+
+    @Test
+    public void lazyFlags() throws Exception {
+        run(new Setup() {
+            @Override
+            public GameBoy create() throws IOException {
+                GameBoy gb = FrameHasher.loadRom(BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH);
+                gb.cpu.setLazyFlags(false);
+                return gb;
+            }
+        }, "Eager flags");
+        run(rom(BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH), "Lazy flags");
+    }
+
+    @Test
+    public void blockCache() throws Exception {
+        run(rom(BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH), "Switch-dispatch core");
+        GameBoy cached = run(rom(BENCHMARK_ROM, CPU.ExecutionMode.BLOCK_CACHE), "Block-cache core");
+        BlockCache cache = cached.cpu.getBlockCache();
+        System.out.println(String.format("Block cache: %.2f%% hit rate (%d hits, %d misses, %d uncached instructions)",
+                cache.getHitRate() * 100, cache.getHits(), cache.getMisses(), cache.getUncached()));
+    }
+
+    @Test
+    public void frameSkipping() throws Exception {
+        run(new Setup() {
+            @Override
+            public GameBoy create() throws IOException {
+                GameBoy gb = FrameHasher.loadRom(BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH);
+                gb.lcd.setFrameSkipper(new FrameSkipper(4));
+                return gb;
+            }
+        }, "Drawing every 4th frame");
+        run(rom(BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH), "Drawing every frame");
+    }
+
+    @Test
+    public void idleLoopSkipping() throws Exception {
+        run(new Setup() {
+            @Override
+            public GameBoy create() throws IOException {
+                GameBoy gb = FrameHasher.loadRom(IDLE_BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH);
+                gb.cpu.setIdleLoopSkipping(false);
+                return gb;
+            }
+        }, "Polling idle loops");
+        GameBoy skipping = run(rom(IDLE_BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH), "Skipping idle loops");
+        System.out.println(String.format("Idle loops: %d of %d cycles skipped", skipping.cpu.getIdleCyclesSkipped(),
+                skipping.scheduler.getCycles()));
+    }
+
+    private static int readSwitchableBank(MBC mbc, int passes) {
+        // Reads every byte of the switchable ROM bank straight from the MBC, switching banks in between
+        int checksum = 0;
+        for (int i = 0; i < passes; ++i) {
+            mbc.write((char) 0x2000, (byte) (1 + (i & 3)));
+            for (int address = 0x4000; address < 0x8000; ++address)
+                checksum += mbc.read((char) address);
+        }
+        return checksum;
+    }
+
+    @Test
+    public void bankedRomReads() throws Exception {
+        MBC mbc = FrameHasher.loadRom(BENCHMARK_ROM, CPU.ExecutionMode.SWITCH_DISPATCH).cartridge.mbc;
+        final int passes = 5000;
+        int checksum = 0;
+
+        // Best of several rounds, so that the measurement isn't dominated by JIT warm-up
+        long elapsed = Long.MAX_VALUE;
+        for (int round = 0; round < 5; ++round) {
+            long start = System.nanoTime();
+            checksum += readSwitchableBank(mbc, passes);
+            elapsed = Math.min(elapsed, System.nanoTime() - start);
+        }
+
+        System.out.println(String.format("Banked ROM reads: %.2f ns/read (checksum %d)",
+                (double) elapsed / (passes * 0x4000), checksum));
+    }
+
+    // Advances the LCD by one frame, in steps of the given number of cycles (0: one event at a time)
+    private static void advanceFrame(LCD lcd, int step) {
+        int cycles = 0;
+        while (cycles < CYCLES_PER_FRAME) {
+            int n = (step > 0) ? step : lcd.cyclesUntilEvent();
+            lcd.advance(n);
+            cycles += n;
+        }
+    }
+
+    private static double lcdFrameTime(int step, int frames) {
+        LCD lcd = new GameBoy().lcd;
+
+        // Best of several rounds, so that the measurement isn't dominated by JIT warm-up
+        long elapsed = Long.MAX_VALUE;
+        for (int round = 0; round < 5; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < frames; ++i)
+                advanceFrame(lcd, step);
+            elapsed = Math.min(elapsed, System.nanoTime() - start);
+        }
+        return (double) elapsed / frames;
+    }
+
+    @Test
+    public void lcdOverhead() {
+        // Per-cycle steps match the old tick() loop, 4-cycle steps a per-instruction update
+        final int frames = 300;
+        System.out.println(String.format("LCD overhead per frame: %.0f ns per cycle, %.0f ns per instruction, " +
+                "%.0f ns per event", lcdFrameTime(1, frames), lcdFrameTime(4, frames), lcdFrameTime(0, frames)));
+    }
+}
@@ -0,0 +1,55 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import creativename.gamedroid.core.FrameExchange;
+
+public class FrameExchangeTest {
+    private static final int FRAME_SIZE = 160 * 144;
+
+    @Test
+    public void newestFrameWins() {
+        FrameExchange exchange = new FrameExchange(FRAME_SIZE);
+        assertNull(exchange.acquire());
+
+        for (int frame = 1; frame <= 3; ++frame) {
+            exchange.getBackBuffer()[0] = frame;
+            exchange.publish();
+        }
+        assertEquals(3, exchange.acquire()[0]);
+        assertNull(exchange.acquire());
+    }
+
+    @Test
+    public void concurrentHandoff() throws Exception {
+        // Every frame taken must be complete (all one value), and newer than the one before
+        final FrameExchange exchange = new FrameExchange(FRAME_SIZE);
+        final int frames = 5000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int frame = 1; frame <= frames; ++frame) {
+                    int[] buffer = exchange.getBackBuffer();
+                    for (int i = 0; i < buffer.length; ++i)
+                        buffer[i] = frame;
+                    exchange.publish();
+                }
+            }
+        });
+        producer.start();
+
+        int last = 0;
+        while (last < frames) {
+            int[] buffer = exchange.acquire();
+            if (buffer == null)
+                continue;
+            int frame = buffer[0];
+            assertTrue(frame > last);
+            for (int pixel : buffer)
+                assertEquals(frame, pixel);
+            last = frame;
+        }
+        producer.join();
+    }
+}
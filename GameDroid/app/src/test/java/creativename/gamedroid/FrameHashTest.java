@@ -0,0 +1,45 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import creativename.gamedroid.core.CPU;
+import creativename.gamedroid.core.GameBoy;
+
+/* Runs the bundled test ROMs for a fixed number of frames and compares a hash of every frame
+   produced against known-good output. Timing changes anywhere in the core (CPU, LCD, timer,
+   interrupts) show up here as a different hash */
+public class FrameHashTest {
+    private static final int FRAMES = 600;
+
+    private static void assertFrameHash(String romPath, long expectedHash) throws Exception {
+        GameBoy gb = FrameHasher.loadRom(romPath, CPU.ExecutionMode.SWITCH_DISPATCH);
+        long hash = FrameHasher.hashFrames(gb, FRAMES);
+        assertEquals(romPath, Long.toHexString(expectedHash), Long.toHexString(hash));
+    }
+
+    @Test
+    public void cpuInstructions() throws Exception {
+        assertFrameHash("../test-roms/cpu_instrs/cpu_instrs.gb", 0xd8c3bfb948473491L);
+    }
+
+    @Test
+    public void instructionTiming() throws Exception {
+        assertFrameHash("../test-roms/instr_timing/instr_timing.gb", 0x1f691c1c5a9267ceL);
+    }
+
+    @Test
+    public void haltBug() throws Exception {
+        assertFrameHash("../test-roms/halt_bug.gb", 0x595fe9d9eeaec045L);
+    }
+
+    @Test
+    public void interruptTiming() throws Exception {
+        assertFrameHash("../test-roms/interrupt_time/interrupt_time.gb", 0x85af332698160aedL);
+    }
+
+    @Test
+    public void memoryTiming() throws Exception {
+        assertFrameHash("../test-roms/mem_timing/mem_timing.gb", 0x9c322137d4138074L);
+    }
+}
@@ -0,0 +1,53 @@
+package creativename.gamedroid;
+
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import creativename.gamedroid.core.CPU;
+import creativename.gamedroid.core.Cartridge;
+import creativename.gamedroid.core.GameBoy;
+import creativename.gamedroid.core.RenderTarget;
+
+/* Hashes every frame rendered, and stops the GameBoy once it has rendered frameLimit of them (if
+   there is one). Shared by the tests which compare emulator output against known-good hashes */
+class FrameHasher implements RenderTarget {
+    private final GameBoy gb;
+    private final int frameLimit;
+    int frames;
+    long hash = 17;
+
+    FrameHasher() {
+        this(null, 0);
+    }
+
+    FrameHasher(GameBoy gb, int frameLimit) {
+        this.gb = gb;
+        this.frameLimit = frameLimit;
+    }
+
+    @Override
+    public void frameReady(int[] frameBuffer) {
+        for (int pixel : frameBuffer)
+            hash = hash * 31 + pixel;
+        if (++frames == frameLimit)
+            gb.terminate();
+    }
+
+    // Loads one of the bundled test ROMs (skipping the test if it isn't there)
+    static GameBoy loadRom(String path, CPU.ExecutionMode mode) throws IOException {
+        assumeTrue(new File(path).exists());
+        GameBoy gb = new GameBoy(mode);
+        gb.cartridge = new Cartridge(path, Cartridge.LoadMode.LOAD_ROM);
+        return gb;
+    }
+
+    // Runs the GameBoy for the given number of frames, and returns the hash of them
+    static long hashFrames(GameBoy gb, int frames) {
+        FrameHasher hasher = new FrameHasher(gb, frames);
+        gb.renderTarget = hasher;
+        gb.run();
+        return hasher.hash;
+    }
+}
@@ -0,0 +1,291 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import creativename.gamedroid.core.CPU;
+import creativename.gamedroid.core.GameBoy;
+import creativename.gamedroid.core.MMU;
+
+/* Runs the same random programs on the table-driven core and the other interpreter cores, and
+   checks that they end up in the same state after every instruction */
+public class InterpreterTest {
+    private static final int PROGRAMS = 200;
+    private static final int INSTRUCTIONS_PER_PROGRAM = 400;
+
+    // Undefined opcodes, STOP, HALT and RST (which would leave the fixture)
+    private static final int[] EXCLUDED_OPCODES = {
+        0xD3, 0xDB, 0xDD, 0xE3, 0xE4, 0xEB, 0xEC, 0xED, 0xF4, 0xFC, 0xFD,
+        0x10, 0x76,
+        0xC7, 0xCF, 0xD7, 0xDF, 0xE7, 0xEF, 0xF7, 0xFF
+    };
+
+    @Test
+    public void randomPrograms() throws Exception {
+        Random random = new Random(0x6B0D);
+        for (int i = 0; i < PROGRAMS; ++i) {
+            int[] program = randomProgram(random, INSTRUCTIONS_PER_PROGRAM);
+            compareCores(program, CPU.ExecutionMode.SWITCH_DISPATCH, false, true);
+            compareCores(program, CPU.ExecutionMode.SWITCH_DISPATCH, true, true);
+        }
+    }
+
+    @Test
+    public void deferredFlags() throws Exception {
+        // Only look at the flags at the end so that chains of lazy flag updates are exercised
+        Random random = new Random(0xF1A6);
+        for (int i = 0; i < PROGRAMS; ++i)
+            compareCores(randomProgram(random, INSTRUCTIONS_PER_PROGRAM),
+                    CPU.ExecutionMode.SWITCH_DISPATCH, true, false);
+    }
+
+    @Test
+    public void blockCache() throws Exception {
+        Random random = new Random(0xB10C);
+        for (int i = 0; i < PROGRAMS; ++i)
+            compareCores(randomProgram(random, INSTRUCTIONS_PER_PROGRAM), CPU.ExecutionMode.BLOCK_CACHE,
+                    true, true);
+    }
+
+    @Test
+    public void blockCacheSelfModifyingCode() throws Exception {
+        GameBoy gb = new GameBoy(CPU.ExecutionMode.BLOCK_CACHE);
+        int[] program = {
+            0x31, 0x00, 0xD0,  // LD SP,$D000
+            0x3E, 0x3E,        // LD A,$3E
+            0xEA, 0x00, 0xC0,  // LD ($C000),A
+            0x3E, 0x11,        // LD A,$11
+            0xEA, 0x01, 0xC0,  // LD ($C001),A
+            0x3E, 0xC9,        // LD A,$C9
+            0xEA, 0x02, 0xC0,  // LD ($C002),A  -> $C000: LD A,$11; RET
+            0xCD, 0x00, 0xC0,  // CALL $C000
+            0x47,              // LD B,A
+            0x3E, 0x22,        // LD A,$22
+            0xEA, 0x01, 0xC0,  // LD ($C001),A  -> $C000: LD A,$22; RET
+            0xCD, 0x00, 0xC0,  // CALL $C000
+            0x4F,              // LD C,A
+        };
+        gb.mmu = new ProgramMMU(program);
+
+        int end = 0x100 + program.length;
+        while (gb.cpu.pc.read() != end)
+            gb.cpu.execInstruction();
+        assertEquals(0x11, gb.cpu.b.read());
+        assertEquals(0x22, gb.cpu.c.read());
+    }
+
+    @Test
+    public void blockCacheCodeAcrossPages() throws Exception {
+        // The block starts in one page of work RAM, and the code overwritten is in the next one
+        GameBoy gb = new GameBoy(CPU.ExecutionMode.BLOCK_CACHE);
+        int[] program = {
+            0x31, 0x00, 0xD0,  // LD SP,$D000
+            0x3E, 0x00,        // LD A,$00
+            0xEA, 0xFE, 0xC0,  // LD ($C0FE),A
+            0x3E, 0x3E,        // LD A,$3E
+            0xEA, 0xFF, 0xC0,  // LD ($C0FF),A
+            0x3E, 0x11,        // LD A,$11
+            0xEA, 0x00, 0xC1,  // LD ($C100),A
+            0x3E, 0xC9,        // LD A,$C9
+            0xEA, 0x01, 0xC1,  // LD ($C101),A  -> $C0FE: NOP; LD A,$11; RET
+            0xCD, 0xFE, 0xC0,  // CALL $C0FE
+            0x47,              // LD B,A
+            0x3E, 0x22,        // LD A,$22
+            0xEA, 0x00, 0xC1,  // LD ($C100),A  -> $C0FE: NOP; LD A,$22; RET
+            0xCD, 0xFE, 0xC0,  // CALL $C0FE
+            0x4F,              // LD C,A
+        };
+        gb.mmu = new ProgramMMU(program);
+
+        int end = 0x100 + program.length;
+        while (gb.cpu.pc.read() != end)
+            gb.cpu.execInstruction();
+        assertEquals(0x11, gb.cpu.b.read());
+        assertEquals(0x22, gb.cpu.c.read());
+    }
+
+    @Test
+    public void haltBug() throws Exception {
+        int[] program = {
+            0x3E, 0x01,  // LD A,$01
+            0xE0, 0xFF,  // LDH ($FF),A
+            0xE0, 0x0F,  // LDH ($0F),A
+            0x76,        // HALT
+            0x3E, 0x14,  // LD A,$14 -> LD A,$3E; INC D
+            0xCB, 0x37,  // SWAP A
+        };
+        compareCores(program, CPU.ExecutionMode.SWITCH_DISPATCH, true, true);
+        compareCores(program, CPU.ExecutionMode.BLOCK_CACHE, true, true);
+    }
+
+    private static void compareCores(int[] program, CPU.ExecutionMode mode, boolean lazyFlags, boolean observeFlags) {
+        GameBoy table = new GameBoy(CPU.ExecutionMode.TABLE_DRIVEN);
+        GameBoy flat = new GameBoy(mode);
+        table.mmu = new ProgramMMU(program);
+        flat.mmu = new ProgramMMU(program);
+        flat.cpu.setLazyFlags(lazyFlags);
+
+        int end = 0x100 + program.length;
+        while (table.cpu.pc.read() < end) {
+            int pc = table.cpu.pc.read();
+            String context = String.format("opcode $%02X at $%04X", program[pc - 0x100], pc);
+            assertEquals(context, table.cpu.execInstruction(), flat.cpu.execInstruction());
+            assertEquals(context, table.cpu.pc.read(), flat.cpu.pc.read());
+            assertEquals(context, table.cpu.sp.read(), flat.cpu.sp.read());
+            assertEquals(context, table.cpu.a.read(), flat.cpu.a.read());
+            if (observeFlags)
+                assertEquals(context, table.cpu.f.read(), flat.cpu.f.read());
+            assertEquals(context, table.cpu.bc.read(), flat.cpu.bc.read());
+            assertEquals(context, table.cpu.de.read(), flat.cpu.de.read());
+            assertEquals(context, table.cpu.hl.read(), flat.cpu.hl.read());
+            assertEquals(context, table.cpu.haltBugTriggered, flat.cpu.haltBugTriggered);
+        }
+        assertEquals(table.cpu.f.read(), flat.cpu.f.read());
+
+        for (int address = 0xC000; address < 0xE000; ++address)
+            assertEquals(table.mmu.read8((char) address), flat.mmu.read8((char) address));
+        for (int address = 0xFF80; address < 0xFFFF; ++address)
+            assertEquals(table.mmu.read8((char) address), flat.mmu.read8((char) address));
+    }
+
+    /* Maps the program into ROM at $0100. The block cache decodes up to the end of a block, which
+       can be past the end of the program, so the rest of ROM reads as NOPs instead of going to the
+       (missing) cartridge */
+    private static class ProgramMMU extends MMU {
+        private static final long serialVersionUID = 0L;
+        private final int[] program;
+
+        ProgramMMU(int[] program) {
+            super(null);
+            this.program = program;
+        }
+
+        @Override
+        public char read8(char address) {
+            if (address >= 0x8000)
+                return super.read8(address);
+            int offset = address - 0x100;
+            return (char) ((offset >= 0 && offset < program.length) ? program[offset] : 0);
+        }
+    }
+
+    /* Generates a program which runs straight through: memory operands stay in work RAM/HRAM,
+       and every branch targets the next instruction whether it is taken or not */
+    private static int[] randomProgram(Random random, int length) {
+        List<Integer> code = new ArrayList<>();
+        for (int i = 0; i < length; ++i) {
+            int op = random.nextInt(256);
+            while (isExcluded(op))
+                op = random.nextInt(256);
+
+            if (op == 0xCB) {
+                int cbOp = random.nextInt(256);
+                if ((cbOp & 7) == 6)
+                    emit(code, 0x21, workRamAddress(random));  // LD HL,nn
+                code.add(op);
+                code.add(cbOp);
+                continue;
+            }
+
+            // Set up pointers and the stack before instructions which use them
+            if (usesHL(op))
+                emit(code, 0x21, workRamAddress(random));
+            if (op == 0x02 || op == 0x0A)
+                emit(code, 0x01, workRamAddress(random));
+            if (op == 0x12 || op == 0x1A)
+                emit(code, 0x11, workRamAddress(random));
+            if (op == 0xE2 || op == 0xF2) {
+                code.add(0x0E);
+                code.add(0x80 + random.nextInt(0x7E));
+            }
+            if (usesStack(op))
+                emit(code, 0x31, 0xD000 + random.nextInt(0x100) * 2);
+
+            switch (op) {
+                case 0x08: case 0xEA: case 0xFA:
+                    emit(code, op, workRamAddress(random));
+                    break;
+                case 0xE0: case 0xF0:
+                    code.add(op);
+                    code.add(0x80 + random.nextInt(0x7E));
+                    break;
+                case 0x18: case 0x20: case 0x28: case 0x30: case 0x38:
+                    // JR to the next instruction
+                    code.add(op);
+                    code.add(0);
+                    break;
+                case 0xC2: case 0xC3: case 0xCA: case 0xD2: case 0xDA:
+                case 0xC4: case 0xCC: case 0xCD: case 0xD4: case 0xDC:
+                    emit(code, op, 0x100 + code.size() + 3);
+                    break;
+                case 0xC0: case 0xC8: case 0xC9: case 0xD0: case 0xD8: case 0xD9:
+                    // Push the address following the RET
+                    emit(code, 0x21, 0x100 + code.size() + 5);
+                    code.add(0xE5);
+                    code.add(op);
+                    break;
+                case 0xE9:
+                    emit(code, 0x21, 0x100 + code.size() + 4);
+                    code.add(op);
+                    break;
+                default:
+                    code.add(op);
+                    for (int j = 0; j < immediateLength(op); ++j)
+                        code.add(random.nextInt(256));
+            }
+        }
+
+        int[] program = new int[code.size() + 1];
+        for (int i = 0; i < code.size(); ++i)
+            program[i] = code.get(i);
+        return program;
+    }
+
+    private static void emit(List<Integer> code, int op, int imm16) {
+        code.add(op);
+        code.add(imm16 & 0xFF);
+        code.add(imm16 >>> 8);
+    }
+
+    private static int workRamAddress(Random random) {
+        // Leave room for LDI/LDD in either direction
+        return 0xC100 + random.nextInt(0x100);
+    }
+
+    private static boolean isExcluded(int op) {
+        for (int excluded : EXCLUDED_OPCODES) {
+            if (op == excluded)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean usesHL(int op) {
+        return op == 0x22 || op == 0x2A || op == 0x32 || op == 0x3A ||
+               op == 0x34 || op == 0x35 || op == 0x36 ||
+               (op >= 0x40 && op < 0xC0 && ((op & 7) == 6 || (op >= 0x70 && op < 0x78)));
+    }
+
+    private static boolean usesStack(int op) {
+        return (op & 0xCB) == 0xC1 ||  // PUSH/POP
+               op == 0xC0 || op == 0xC8 || op == 0xC9 || op == 0xD0 || op == 0xD8 || op == 0xD9 ||
+               op == 0xC4 || op == 0xCC || op == 0xCD || op == 0xD4 || op == 0xDC;
+    }
+
+    private static int immediateLength(int op) {
+        switch (op) {
+            case 0x01: case 0x11: case 0x21: case 0x31:
+                return 2;
+            case 0x06: case 0x0E: case 0x16: case 0x1E: case 0x26: case 0x2E: case 0x36: case 0x3E:
+            case 0xC6: case 0xCE: case 0xD6: case 0xDE: case 0xE6: case 0xEE: case 0xF6: case 0xFE:
+            case 0xE8: case 0xF8:
+                return 1;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import creativename.gamedroid.core.CPU;
+import creativename.gamedroid.core.FrameSkipListener;
+import creativename.gamedroid.core.FrameSkipper;
+import creativename.gamedroid.core.GameBoy;
+import creativename.gamedroid.core.MMU;
+
+/* Renders frames from generated VRAM/OAM/register snapshots (random tiles, tile maps, sprites,
+   scrolling, window position, palettes and LCDC settings) and compares a hash of every frame
+   against the output recorded from the original per-pixel renderer */
+public class LCDTest {
+    private static final int SNAPSHOTS = 64;
+
+    private static void write(MMU mmu, int address, int value) {
+        mmu.write8((char) address, (char) value);
+    }
+
+    private static void loadSnapshot(MMU mmu, Random random) {
+        write(mmu, 0xFF40, 0x00);  // LCD off, so that VRAM and OAM can be written
+        for (int address = 0x8000; address < 0xA000; ++address)
+            write(mmu, address, random.nextInt(0x100));
+
+        // Keep sprites around the screen, with the odd one partly off the edges
+        for (int address = 0xFE00; address < 0xFEA0; address += 4) {
+            write(mmu, address, random.nextInt(176));
+            write(mmu, address + 1, random.nextInt(176));
+            write(mmu, address + 2, random.nextInt(0x100));
+            write(mmu, address + 3, random.nextInt(0x100));
+        }
+
+        write(mmu, 0xFF42, random.nextInt(0x100));  // SCY
+        write(mmu, 0xFF43, random.nextInt(0x100));  // SCX
+        write(mmu, 0xFF47, random.nextInt(0x100));  // BGP
+        write(mmu, 0xFF48, random.nextInt(0x100));  // OBP0
+        write(mmu, 0xFF49, random.nextInt(0x100));  // OBP1
+        write(mmu, 0xFF4A, random.nextInt(160));    // WY
+        write(mmu, 0xFF4B, random.nextInt(176));    // WX (below 7 and past the right edge included)
+        write(mmu, 0xFF40, 0x80 | random.nextInt(0x80));
+    }
+
+    private static void renderFrame(GameBoy gb, FrameHasher hasher) {
+        int frames = hasher.frames;
+        while (hasher.frames == frames)
+            gb.lcd.advance(gb.lcd.cyclesUntilEvent());
+    }
+
+    @Test
+    public void snapshotFrames() {
+        GameBoy gb = new GameBoy();
+        FrameHasher hasher = new FrameHasher();
+        gb.renderTarget = hasher;
+
+        Random random = new Random(0x1CD);
+        for (int i = 0; i < SNAPSHOTS; ++i) {
+            loadSnapshot(gb.mmu, random);
+            renderFrame(gb, hasher);
+        }
+        assertEquals(Long.toHexString(0x68bbe61644ca7978L), Long.toHexString(hasher.hash));
+    }
+
+    @Test
+    public void midFrameChanges() {
+        // OAM and sprite size changes during HBlank/VBlank take effect from the next line
+        GameBoy gb = new GameBoy();
+        FrameHasher hasher = new FrameHasher();
+        gb.renderTarget = hasher;
+
+        Random random = new Random(0x0A3);
+        for (int i = 0; i < SNAPSHOTS / 4; ++i) {
+            loadSnapshot(gb.mmu, random);
+            int frames = hasher.frames;
+            while (hasher.frames == frames) {
+                gb.lcd.advance(gb.lcd.cyclesUntilEvent());
+                if ((gb.mmu.read8((char) 0xFF41) & 2) != 0)
+                    continue;  // OAM is locked
+
+                if (random.nextInt(4) == 0)
+                    write(gb.mmu, 0xFE00 + random.nextInt(0xA0), random.nextInt(176));
+                if (random.nextInt(16) == 0)
+                    write(gb.mmu, 0xFF40, gb.mmu.read8((char) 0xFF40) ^ 0x04);
+            }
+        }
+        assertEquals(Long.toHexString(0x4257b8fc424426bdL), Long.toHexString(hasher.hash));
+    }
+
+    private static class SkipCounter extends FrameHasher implements FrameSkipListener {
+        int skipped;
+
+        @Override
+        public void frameSkipped() {
+            ++skipped;
+        }
+    }
+
+    @Test
+    public void frameSkipping() {
+        GameBoy gb = new GameBoy();
+        SkipCounter counter = new SkipCounter();
+        gb.renderTarget = counter;
+        loadSnapshot(gb.mmu, new Random(0x5C1));
+        renderFrame(gb, counter);
+        int[] drawn = gb.lcd.framebuffer.clone();
+
+        // One frame in 3 is drawn, and the LCD keeps raising VBlank interrupts for the others
+        gb.lcd.setFrameSkipper(new FrameSkipper(3));
+        int framesDrawn = counter.frames;
+        int vblanks = 0;
+        while (counter.frames - framesDrawn + counter.skipped < 9) {
+            gb.mmu.write8((char) 0xFF0F, (char) 0);
+            gb.lcd.advance(gb.lcd.cyclesUntilEvent());
+            if ((gb.mmu.read8((char) 0xFF0F) & CPU.Interrupt.VBLANK.getBitmask()) != 0)
+                ++vblanks;
+        }
+        assertEquals(3, counter.frames - framesDrawn);
+        assertEquals(6, counter.skipped);
+        assertEquals(9, vblanks);
+        assertArrayEquals(drawn, gb.lcd.framebuffer);
+    }
+
+    @Test
+    public void shades() {
+        int[] shades = {0xFF9BBC0F, 0xFF8BAC0F, 0xFF306230, 0xFF0F380F};
+        GameBoy gb = new GameBoy();
+        FrameHasher hasher = new FrameHasher();
+        gb.renderTarget = hasher;
+        gb.lcd.setShades(shades);
+
+        loadSnapshot(gb.mmu, new Random(0x5AD));
+        renderFrame(gb, hasher);
+
+        // Every pixel is drawn with one of the new shades
+        List<Integer> shadeList = new ArrayList<>();
+        for (int shade : shades)
+            shadeList.add(shade);
+        for (int pixel : gb.lcd.framebuffer)
+            assertTrue(shadeList.contains(pixel));
+    }
+}
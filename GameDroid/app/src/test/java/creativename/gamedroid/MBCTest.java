@@ -0,0 +1,43 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import creativename.gamedroid.core.MBC;
+import creativename.gamedroid.core.MBC0;
+import creativename.gamedroid.core.MBC1;
+
+public class MBCTest {
+    private static byte[] romOfSize(int size) {
+        byte[] rom = new byte[size];
+        for (int i = 0; i < size; ++i)
+            rom[i] = (byte) (i / 0x4000 + i);
+        return rom;
+    }
+
+    // Reads every ROM address, checking the bytes which exist and that the rest read as $FF
+    private static void assertBankReads(MBC mbc, byte[] rom, int bank) {
+        for (int address = 0; address < 0x8000; ++address) {
+            int i = (address < 0x4000) ? address : bank * 0x4000 + address - 0x4000;
+            int expected = (i < rom.length) ? rom[i] & 0xFF : 0xFF;
+            assertEquals(String.format("Bank %d, $%04X", bank, address), expected, mbc.read((char) address) & 0xFF);
+        }
+    }
+
+    @Test
+    public void oddSizedRom() {
+        // Not a whole number of banks: the last bank is partial
+        byte[] rom = romOfSize(0x4000 * 3 + 0x123);
+        MBC mbc = new MBC1(rom, 0);
+        for (int bank : new int[]{1, 2, 3, 2}) {
+            mbc.write((char) 0x2000, (byte) bank);
+            assertBankReads(mbc, rom, bank);
+        }
+    }
+
+    @Test
+    public void romSmallerThanTwoBanks() {
+        byte[] rom = romOfSize(0x2345);
+        assertBankReads(new MBC0(rom, 0), rom, 1);
+    }
+}
@@ -0,0 +1,71 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import creativename.gamedroid.core.Cartridge;
+import creativename.gamedroid.core.GameBoy;
+
+public class MMUTest {
+    private static final String MBC1_ROM = "../test-roms/cpu_instrs/cpu_instrs.gb";
+
+    private static GameBoy loadRom(String path) throws IOException {
+        assumeTrue(new File(path).exists());
+        GameBoy gb = new GameBoy();
+        gb.cartridge = new Cartridge(path, Cartridge.LoadMode.LOAD_ROM);
+        return gb;
+    }
+
+    @Test
+    public void romBankSwitching() throws Exception {
+        GameBoy gb = loadRom(MBC1_ROM);
+        byte[] rom = Files.readAllBytes(new File(MBC1_ROM).toPath());
+
+        // Each switch has to replace the pages mapped for the previous bank
+        for (int bank : new int[]{1, 2, 3, 1}) {
+            gb.mmu.write8((char) 0x2000, (char) bank);
+            for (int address = 0x4000; address < 0x8000; address += 0x7F)
+                assertEquals(rom[bank * 0x4000 + address - 0x4000] & 0xFF, gb.mmu.read8((char) address));
+        }
+        for (int address = 0; address < 0x4000; address += 0x7F)
+            assertEquals(rom[address] & 0xFF, gb.mmu.read8((char) address));
+    }
+
+    @Test
+    public void romIsReadOnly() throws Exception {
+        GameBoy gb = loadRom(MBC1_ROM);
+        char original = gb.mmu.read8((char) 0x0150);
+        gb.mmu.write8((char) 0x0150, (char) (original ^ 0xFF));
+        assertEquals(original, gb.mmu.read8((char) 0x0150));
+    }
+
+    @Test
+    public void echoRam() throws Exception {
+        GameBoy gb = new GameBoy();
+        gb.mmu.write8((char) 0xC123, (char) 0x42);
+        assertEquals(0x42, gb.mmu.read8((char) 0xE123));
+        gb.mmu.write8((char) 0xED00, (char) 0x99);
+        assertEquals(0x99, gb.mmu.read8((char) 0xCD00));
+
+        // $F000-$FDFF is not mapped
+        gb.mmu.write8((char) 0xF123, (char) 0x42);
+        assertEquals(0xFF, gb.mmu.read8((char) 0xF123));
+    }
+
+    @Test
+    public void tileDataWrites() throws Exception {
+        // Tile data pages are mapped for reading only, so repeated accesses still write through the LCD
+        GameBoy gb = new GameBoy();
+        for (int i = 0; i < 3; ++i) {
+            gb.mmu.write8((char) 0x8010, (char) (0x3C + i));
+            assertEquals(0x3C + i, gb.mmu.read8((char) 0x8010));
+        }
+        gb.mmu.write8((char) 0x97FF, (char) 0x81);
+        assertEquals(0x81, gb.mmu.read8((char) 0x97FF));
+    }
+}
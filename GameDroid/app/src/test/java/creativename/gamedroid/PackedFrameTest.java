@@ -0,0 +1,42 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import creativename.gamedroid.core.PackedFrame;
+
+public class PackedFrameTest {
+    private static final int[] SHADES = {0xFFFFFFFF, 0xFFC0C0C0, 0xFF606060, 0xFF000000};
+
+    @Test
+    public void roundTrip() {
+        Random random = new Random(0x2B9);
+        int[] frame = new int[160 * 144];
+        for (int i = 0; i < frame.length; ++i)
+            frame[i] = SHADES[random.nextInt(4)];
+
+        byte[] packed = new byte[PackedFrame.SIZE + 3];
+        PackedFrame.pack(frame, SHADES, packed, 3);
+        int[] unpacked = new int[frame.length];
+        PackedFrame.unpack(packed, 3, SHADES, unpacked);
+        assertArrayEquals(frame, unpacked);
+    }
+
+    @Test
+    public void unpacksInOtherShades() {
+        // Packed frames are only shade indices, so they can be shown in any palette
+        int[] green = {0xFF9BBC0F, 0xFF8BAC0F, 0xFF306230, 0xFF0F380F};
+        int[] frame = new int[160 * 144];
+        for (int i = 0; i < frame.length; ++i)
+            frame[i] = SHADES[(i / 7) % 4];
+
+        byte[] packed = new byte[PackedFrame.SIZE];
+        PackedFrame.pack(frame, SHADES, packed, 0);
+        int[] unpacked = new int[frame.length];
+        PackedFrame.unpack(packed, 0, green, unpacked);
+        for (int i = 0; i < frame.length; ++i)
+            assertEquals(green[(i / 7) % 4], unpacked[i]);
+    }
+}
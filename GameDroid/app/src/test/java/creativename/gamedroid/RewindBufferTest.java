@@ -0,0 +1,90 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import creativename.gamedroid.ui.RewindBuffer;
+
+/* Pushes states which change a little from one to the next (like emulator states do), and checks
+   that popping gives back the newest ones in reverse, whatever had to be dropped to fit them */
+public class RewindBufferTest {
+    private static final int STATE_SIZE = 4096;
+
+    private static List<byte[]> generateStates(Random random, int count) {
+        List<byte[]> states = new ArrayList<>();
+        byte[] state = new byte[STATE_SIZE];
+        for (int i = 0; i < count; ++i) {
+            state = state.clone();
+            for (int change = random.nextInt(64); change > 0; --change)
+                state[random.nextInt(STATE_SIZE)] = (byte) random.nextInt(0x100);
+            if (random.nextInt(50) == 0) {
+                // The odd big change (e.g., a new screen's tiles being loaded)
+                int start = random.nextInt(STATE_SIZE / 2);
+                for (int j = start; j < start + STATE_SIZE / 2; ++j)
+                    state[j] = (byte) random.nextInt(0x100);
+            }
+            states.add(state);
+        }
+        return states;
+    }
+
+    private static void assertPopsNewest(RewindBuffer buffer, List<byte[]> states, int popCount) {
+        byte[] state = new byte[STATE_SIZE];
+        for (int i = states.size() - 1; i >= states.size() - popCount; --i) {
+            assertTrue(buffer.pop(state));
+            assertArrayEquals("State " + i, states.get(i), state);
+        }
+    }
+
+    @Test
+    public void popsInReverse() {
+        RewindBuffer buffer = new RewindBuffer(STATE_SIZE, 1 << 20, 16, 1000);
+        List<byte[]> states = generateStates(new Random(0x4E1), 500);
+        for (int i = 0; i < states.size(); ++i)
+            buffer.push(states.get(i));
+        assertEquals(500, buffer.size());
+
+        // Far smaller than the states themselves
+        assertTrue(buffer.getUsedBytes() < states.size() * STATE_SIZE / 8);
+
+        assertPopsNewest(buffer, states, 500);
+        assertTrue(buffer.isEmpty());
+        assertFalse(buffer.pop(new byte[STATE_SIZE]));
+    }
+
+    @Test
+    public void dropsOldest() {
+        // Only room for a fraction of the states: the newest are kept, a keyframe group at a time
+        RewindBuffer buffer = new RewindBuffer(STATE_SIZE, 64 * 1024, 10, 1000);
+        List<byte[]> states = generateStates(new Random(0xD20), 2000);
+        for (int i = 0; i < states.size(); ++i) {
+            buffer.push(states.get(i));
+            assertTrue(buffer.getUsedBytes() <= buffer.getCapacity());
+        }
+        int kept = buffer.size();
+        assertTrue(kept > 10 && kept < 2000);
+        assertPopsNewest(buffer, states, kept);
+    }
+
+    @Test
+    public void pushAfterPop() {
+        // Rewinding partway, then carrying on from there
+        RewindBuffer buffer = new RewindBuffer(STATE_SIZE, 256 * 1024, 8, 100);
+        Random random = new Random(0x9A5);
+        List<byte[]> states = generateStates(random, 300);
+        for (int i = 0; i < 200; ++i)
+            buffer.push(states.get(i));
+        assertTrue(buffer.size() > 100 - 8 && buffer.size() <= 100);  // Dropped a group at a time
+        assertPopsNewest(buffer, states.subList(0, 200), 37);
+
+        List<byte[]> resumed = new ArrayList<>(states.subList(0, 163));
+        resumed.addAll(generateStates(random, 50));
+        for (int i = 163; i < resumed.size(); ++i)
+            buffer.push(resumed.get(i));
+        assertPopsNewest(buffer, resumed, buffer.size());
+    }
+}
@@ -0,0 +1,74 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import creativename.gamedroid.ui.RewindBuffer;
+import creativename.gamedroid.ui.RewindHistory;
+
+/* Pushes far more states than fit, and checks that the newest come back a point at a time and
+   the older ones more and more thinly */
+public class RewindHistoryTest {
+    private static final int STATE_SIZE = 4096;
+    private static final int POINTS = 20000;
+    private static final int NOISE_SIZE = 300;  // Bytes which change every point (so that no point is free)
+
+    // State i, rebuilt from i alone (so that popped states can be checked without keeping them all)
+    private static byte[] stateOf(int i) {
+        byte[] state = new byte[STATE_SIZE];
+        Random random = new Random(0x5EED);
+        for (int j = 0; j <= i % 200; ++j)
+            state[random.nextInt(STATE_SIZE)] = (byte) random.nextInt(0x100);
+        Random noise = new Random(i);
+        for (int j = STATE_SIZE - NOISE_SIZE; j < STATE_SIZE; ++j)
+            state[j] = (byte) noise.nextInt(0x100);
+        state[0] = (byte) (i >>> 8);
+        state[1] = (byte) i;
+        state[2] = (byte) (i / 200);
+        return state;
+    }
+
+    @Test
+    public void thinsOlderPoints() {
+        RewindHistory history = new RewindHistory(STATE_SIZE, 1024 * 1024, 16, 4);
+        for (int i = 0; i < POINTS; ++i) {
+            history.push(stateOf(i));
+            assertTrue(history.getUsedBytes() <= 1024 * 1024);
+        }
+
+        byte[] state = new byte[STATE_SIZE];
+        int last = POINTS;
+        int gap = 1;
+        int span = history.getSpan();
+        while (history.pop(state)) {
+            int i = ((state[0] & 0xFF) << 8) | (state[1] & 0xFF);
+            assertArrayEquals("State " + i, stateOf(i), state);
+
+            // Newest first, with the gaps between points only ever growing (a power of 2 at a time)
+            assertTrue(i < last);
+            int newGap = last - i;
+            if (last < POINTS && newGap != gap) {
+                assertTrue(newGap > gap);
+                assertEquals(0, newGap & (newGap - 1));
+            }
+            gap = (last < POINTS) ? newGap : 1;
+            last = i;
+        }
+        assertEquals(8, gap);
+        assertTrue(POINTS - last <= span + 8);
+    }
+
+    @Test
+    public void reachesFurtherBack() {
+        // Same memory as a single buffer keeping every point, several times the history
+        RewindBuffer buffer = new RewindBuffer(STATE_SIZE, 1024 * 1024, 16, 100000);
+        RewindHistory history = new RewindHistory(STATE_SIZE, 1024 * 1024, 16, 4);
+        for (int i = 0; i < POINTS; ++i) {
+            buffer.push(stateOf(i));
+            history.push(stateOf(i));
+        }
+        assertTrue(history.getSpan() > buffer.size() * 3);
+    }
+}
@@ -0,0 +1,69 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import creativename.gamedroid.core.CPU;
+import creativename.gamedroid.core.GameBoy;
+
+/* Saves a state partway through a test ROM, and checks that the frames which follow are the same
+   whether emulation carries on or resumes from the loaded state */
+public class SaveStateTest {
+    private static final String ROM_PATH = "../test-roms/cpu_instrs/cpu_instrs.gb";
+    private static final int FRAMES = 120;
+
+    private static GameBoy createGameBoy(CPU.ExecutionMode mode) throws IOException {
+        return FrameHasher.loadRom(ROM_PATH, mode);
+    }
+
+    private static long runFrames(GameBoy gb) {
+        return FrameHasher.hashFrames(gb, FRAMES);
+    }
+
+    @Test
+    public void resumeFromState() throws Exception {
+        for (CPU.ExecutionMode mode : new CPU.ExecutionMode[]{CPU.ExecutionMode.SWITCH_DISPATCH,
+                                                               CPU.ExecutionMode.BLOCK_CACHE}) {
+            GameBoy gb = createGameBoy(mode);
+            runFrames(gb);
+            ByteBuffer state = ByteBuffer.allocate(GameBoy.STATE_SIZE);
+            gb.saveState(state);
+            assertEquals(GameBoy.STATE_SIZE, state.position());
+            long expected = runFrames(gb);
+
+            // Into the same GameBoy
+            state.flip();
+            gb.loadState(state);
+            assertEquals(mode.toString(), expected, runFrames(gb));
+
+            // Into a new one, through a stream
+            state.flip();
+            GameBoy loaded = createGameBoy(mode);
+            loaded.loadState(new ByteArrayInputStream(state.array()));
+            assertEquals(mode.toString(), expected, runFrames(loaded));
+        }
+    }
+
+    @Test
+    public void streamRoundTrip() throws Exception {
+        GameBoy gb = createGameBoy(CPU.ExecutionMode.SWITCH_DISPATCH);
+        runFrames(gb);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        gb.saveState(out);
+        assertEquals(GameBoy.STATE_SIZE, out.size());
+
+        byte[] state = out.toByteArray();
+        state[7] = 99;  // Version
+        try {
+            gb.loadState(new ByteArrayInputStream(state));
+            fail("Loaded a state with an unknown version");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import creativename.gamedroid.ui.SnapshotQueue;
+
+public class SnapshotQueueTest {
+    @Test
+    public void dropsWhenFull() {
+        SnapshotQueue queue = new SnapshotQueue(4, 16, 16);
+        for (int i = 0; i < 4; ++i) {
+            SnapshotQueue.Snapshot snapshot = queue.claim();
+            snapshot.generation = i;
+            queue.publish();
+        }
+        assertNull(queue.claim());
+
+        assertEquals(0, queue.peek().generation);
+        queue.release();
+        assertNotNull(queue.claim());
+    }
+
+    @Test
+    public void concurrentHandoff() throws Exception {
+        // Snapshots come out complete and in order, whichever ones had to be dropped
+        final SnapshotQueue queue = new SnapshotQueue(8, 1024, 1024);
+        final int snapshots = 20000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 1; i <= snapshots; ++i) {
+                    SnapshotQueue.Snapshot snapshot = queue.claim();
+                    if (snapshot == null && i < snapshots)
+                        continue;  // Dropped
+                    while (snapshot == null)
+                        snapshot = queue.claim();  // Always send the last one
+                    for (int j = 0; j < snapshot.frame.length; ++j) {
+                        snapshot.frame[j] = i;
+                        snapshot.state[j] = (byte) i;
+                    }
+                    snapshot.generation = i;
+                    queue.publish();
+                }
+            }
+        });
+        producer.start();
+
+        int last = 0;
+        while (last < snapshots) {
+            SnapshotQueue.Snapshot snapshot = queue.peek();
+            if (snapshot == null)
+                continue;
+            int i = snapshot.generation;
+            assertTrue(i > last);
+            for (int j = 0; j < snapshot.frame.length; ++j) {
+                assertEquals(i, snapshot.frame[j]);
+                assertEquals((byte) i, snapshot.state[j]);
+            }
+            last = i;
+            queue.release();
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
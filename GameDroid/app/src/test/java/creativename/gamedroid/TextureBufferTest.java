@@ -0,0 +1,40 @@
+package creativename.gamedroid;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.IntBuffer;
+
+import creativename.gamedroid.core.TextureBuffer;
+
+public class TextureBufferTest {
+    @Test
+    public void dirtyRows() {
+        TextureBuffer texture = new TextureBuffer(160, 144);
+        int[] frame = new int[160 * 144];
+
+        // Everything is uploaded the first time, even if it happens to match the empty buffer
+        assertTrue(texture.update(frame));
+        assertEquals(0, texture.getDirtyStart());
+        assertEquals(144, texture.getDirtyEnd());
+        assertFalse(texture.update(frame));
+
+        frame[20 * 160 + 5] = 0xFF123456;
+        frame[30 * 160 + 159] = 0xFF654321;
+        assertTrue(texture.update(frame));
+        assertEquals(20, texture.getDirtyStart());
+        assertEquals(31, texture.getDirtyEnd());
+        assertEquals(20 * 160, texture.getDirtyRows().position());
+    }
+
+    @Test
+    public void rgbaLayout() {
+        TextureBuffer texture = new TextureBuffer(2, 1);
+        texture.update(new int[] {0xFF112233, 0x80445566});
+
+        // Pixels are stored as R, G, B, A bytes
+        IntBuffer buffer = texture.getBuffer();
+        assertEquals(0x112233FF, buffer.get(0));
+        assertEquals(0x44556680, buffer.get(1));
+    }
+}